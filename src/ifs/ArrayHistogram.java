@@ -0,0 +1,128 @@
+package ifs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Histogram on the heap, in flat primitive arrays: one of counts and one of colors holding the R, G and B components
+ * of each pixel next to each other
+ */
+public class ArrayHistogram extends Histogram {
+
+	private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle COLORS = MethodHandles.arrayElementVarHandle(double[].class);
+
+	final long[] counts;
+	/**
+	 * Color sums or blended colors, depending on the color mode; three per pixel
+	 */
+	final double[] colors;
+
+	public ArrayHistogram(int width, int height, Renderer.ColorMode colorMode) {
+		this(width, height, 1, colorMode);
+	}
+
+	public ArrayHistogram(int width, int height, int depth, Renderer.ColorMode colorMode) {
+		this(width, height, depth, colorMode, Layout.ROW_MAJOR);
+	}
+
+	/**
+	 * @param depth number of planes of a voxel grid, 1 for an image
+	 * @param colorMode accumulation of the colors of a pixel's hits
+	 * @param layout storage order of the pixels
+	 */
+	public ArrayHistogram(int width, int height, int depth, Renderer.ColorMode colorMode, Layout layout) {
+		super(width, height, depth, colorMode, layout);
+		if (3L * size() > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("histogram too large for the heap: " + width + "x" + height + "x" + depth);
+		counts = new long[size()];
+		colors = new double[3 * size()];
+	}
+
+	@Override
+	public long count(int i) {
+		return counts[i];
+	}
+
+	@Override
+	public double value(int i, int c) {
+		return colors[3 * i + c];
+	}
+
+	@Override
+	protected void set(int i, long n, double r, double g, double b) {
+		counts[i] = n;
+		colors[3 * i] = r;
+		colors[3 * i + 1] = g;
+		colors[3 * i + 2] = b;
+	}
+
+	@Override
+	public void add(int i, double r, double g, double b) {
+		counts[i]++;
+		int c = 3 * i;
+		if (sum) {
+			colors[c] += r;
+			colors[c + 1] += g;
+			colors[c + 2] += b;
+		} else {
+			colors[c] = (colors[c] + r)/2;
+			colors[c + 1] = (colors[c + 1] + g)/2;
+			colors[c + 2] = (colors[c + 2] + b)/2;
+		}
+	}
+
+	@Override
+	public void addAtomic(int i, long n, double r, double g, double b) {
+		COUNTS.getAndAdd(counts, i, n);
+		int c = 3 * i;
+		if (sum) {
+			COLORS.getAndAdd(colors, c, r);
+			COLORS.getAndAdd(colors, c + 1, g);
+			COLORS.getAndAdd(colors, c + 2, b);
+		} else {
+			blendAtomic(c, r);
+			blendAtomic(c + 1, g);
+			blendAtomic(c + 2, b);
+		}
+	}
+
+	private void blendAtomic(int c, double v) {
+		double old;
+		do {
+			old = (double) COLORS.getVolatile(colors, c);
+		} while (!COLORS.compareAndSet(colors, c, old, (old + v)/2));
+	}
+
+	@Override
+	public long maxCount(int start, int end) {
+		long max = 0;
+		for (int i = start; i < end; i++) {
+			if (counts[i] > max) max = counts[i];
+		}
+		return max;
+	}
+
+	@Override
+	public void merge(Histogram from, int start, int end) {
+		if (!(from instanceof ArrayHistogram)) {
+			super.merge(from, start, end);
+			return;
+		}
+		ArrayHistogram a = (ArrayHistogram) from;
+		for (int i = start; i < end; i++) {
+			long m = a.counts[i];
+			if (m == 0) continue;
+			long n = counts[i];
+			for (int k = 3 * i; k < 3 * i + 3; k++) colors[k] = merge(colors[k], n, a.colors[k], m);
+			counts[i] = n + m;
+		}
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(colors, 0);
+	}
+}
@@ -0,0 +1,285 @@
+package ifs;
+
+import utils.Utils;
+import utils.math.geom.Vector3f;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Renders across several worker JVMs on this host. The render is split into work units, each a shard of the
+ * deterministic chunks (see {@link Renderer#setShard(int, int)}); up to {@link #setWorkers(int) workers} units run
+ * at a time, each in a JVM of its own that plots its shard and saves it as a {@link HistogramFile}. Units whose
+ * worker fails, or runs much longer than the units done so far (or than the {@link #setTimeout(long) timeout}
+ * before any is done), are run again. The shards are then merged and drawn.
+ * <p>
+ * A worker maps the total of its shard onto a file and plots each chunk into a sparse table of the pixels it hits,
+ * so the heap it needs stops growing with the canvas: from four million pixels up, it holds one chunk's table of
+ * about 72 MB. A crashing worker only costs its unit. Since every unit plots fixed chunks from the same seeds, the
+ * image does not depend on the workers, the units or the retries.
+ */
+public class Coordinator {
+
+	/**
+	 * Number of times a unit is run before the render fails
+	 */
+	public static final int ATTEMPTS = 3;
+
+	/**
+	 * A unit running this many times longer than the slowest unit done is taken to be stuck and run again
+	 */
+	public static final int SLOW = 4;
+
+	private final Path descriptorFile;
+	private final int descriptorSeed;
+	private final long seed;
+	private final double pixelScale;
+	private Renderer.ColorMode colorMode = Renderer.ColorMode.BLEND;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int units;
+	private int attempts = ATTEMPTS;
+	private long timeout;
+	private List<String> jvmOptions = new ArrayList<>();
+
+	/**
+	 * @param descriptorFile descriptor source, read by each worker
+	 * @param descriptorSeed seed of the descriptor's selection streams
+	 * @param seed seed of the renderer
+	 */
+	public Coordinator(Path descriptorFile, int descriptorSeed, long seed, double pixelScale) {
+		this.descriptorFile = descriptorFile;
+		this.descriptorSeed = descriptorSeed;
+		this.seed = seed;
+		this.pixelScale = pixelScale;
+	}
+
+	/**
+	 * @param workers number of worker JVMs running at a time
+	 */
+	public void setWorkers(int workers) {
+		if (workers < 1) throw new IllegalArgumentException("workers must be positive: " + workers);
+		this.workers = workers;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @param units number of work units the render is split into, 0 for four per worker; smaller units cost less to
+	 *              run again, but each worker JVM starts up and allocates its histogram anew
+	 */
+	public void setUnits(int units) {
+		this.units = units;
+	}
+
+	public int getUnits() {
+		return units;
+	}
+
+	/**
+	 * @param attempts number of times a unit is run before the render fails
+	 */
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * Sets how long a unit may run before any unit is done; once one is, units are taken to be stuck when they run
+	 * {@link #SLOW} times longer than the slowest unit done
+	 * @param timeout time in milliseconds after which a unit is run again, 0 to wait for the first unit however long
+	 *                it takes
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setColorMode(Renderer.ColorMode colorMode) {
+		this.colorMode = colorMode;
+	}
+
+	/**
+	 * @param jvmOptions options of the worker JVMs, such as a heap limit
+	 */
+	public void setJvmOptions(List<String> jvmOptions) {
+		this.jvmOptions = new ArrayList<>(jvmOptions);
+	}
+
+	/**
+	 * A shard to plot, and the worker plotting it
+	 */
+	private class Unit {
+		final int shard;
+		final Path file;
+		int attempt;
+		Process process;
+		long start;
+
+		Unit(int shard, Path directory) {
+			this.shard = shard;
+			file = directory.resolve("shard" + shard + ".hist");
+		}
+
+		void launch(int iterations, int units) throws IOException {
+			List<String> command = new ArrayList<>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(Coordinator.class.getName());
+			command.add("--worker");
+			for (Object arg : new Object[] {descriptorFile, descriptorSeed, seed, pixelScale, colorMode, iterations,
+					shard, units, file}) {
+				command.add(arg.toString());
+			}
+			attempt++;
+			start = System.nanoTime();
+			process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+					.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		}
+	}
+
+	/**
+	 * Renders on the workers and merges the shards
+	 * @param merged file to merge the shards into
+	 * @return the merged histogram, open
+	 * @throws IOException if a unit failed {@link #setAttempts(int) attempts} times, or the shards cannot be merged
+	 */
+	public HistogramFile render(int iterations, Path merged) throws IOException, InterruptedException {
+		int chunks = (int) (((long) iterations + Renderer.CHUNK - 1) / Renderer.CHUNK);
+		int units = Math.min(chunks, (this.units > 0)? this.units : 4 * workers);
+		Path directory = Files.createTempDirectory("ifs");
+		Deque<Unit> pending = new ArrayDeque<>();
+		for (int k = 0; k < units; k++) pending.add(new Unit(k, directory));
+		List<Unit> running = new CopyOnWriteArrayList<>();
+		Thread cleanup = new Thread(() -> running.forEach(u -> u.process.destroyForcibly()));
+		Runtime.getRuntime().addShutdownHook(cleanup);
+		try {
+			long slowest = 0;
+			while (!pending.isEmpty() || !running.isEmpty()) {
+				while (running.size() < workers && !pending.isEmpty()) {
+					Unit u = pending.poll();
+					u.launch(iterations, units);
+					running.add(u);
+				}
+				Thread.sleep(20);
+				for (Unit u : running) {
+					long time = System.nanoTime() - u.start;
+					if (u.process.isAlive()) {
+						if ((slowest == 0)? timeout == 0 || time < timeout * 1_000_000 : time < SLOW * slowest) continue;
+						u.process.destroyForcibly().waitFor();
+						System.err.println("unit " + u.shard + " is stuck, attempt " + u.attempt + " killed");
+					} else if (u.process.exitValue() == 0 && Files.exists(u.file)) {
+						slowest = Math.max(slowest, time);
+						running.remove(u);
+						continue;
+					} else {
+						System.err.println("unit " + u.shard + " failed, attempt " + u.attempt + " exited with " +
+								u.process.exitValue());
+					}
+					running.remove(u);
+					if (u.attempt >= attempts)
+						throw new IOException("unit " + u.shard + " failed " + u.attempt + " times");
+					pending.add(u);
+				}
+			}
+			List<Path> shards = new ArrayList<>();
+			for (int k = 0; k < units; k++) shards.add(directory.resolve("shard" + k + ".hist"));
+			return HistogramFile.merge(shards, merged, false);
+		} finally {
+			cleanup.run();
+			Runtime.getRuntime().removeShutdownHook(cleanup);
+			try (var files = Files.list(directory)) {
+				for (Path p : (Iterable<Path>) files::iterator) Files.deleteIfExists(p);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Plots one shard and saves it: the worker side of {@link Unit#launch(int, int)}
+	 */
+	private static void worker(String[] args) throws Exception {
+		IFSDescriptor d = new IFSDescriptor(Utils.readFile(args[0]), Integer.parseInt(args[1]));
+		Renderer r = new Renderer(d, Double.parseDouble(args[3]), Long.parseLong(args[2]));
+		r.setColorMode(Renderer.ColorMode.valueOf(args[4]));
+		int iterations = Integer.parseInt(args[5]);
+		r.setShard(Integer.parseInt(args[6]), Integer.parseInt(args[7]));
+		r.setDeterministic(true);
+		r.setThreads(1);
+		Path out = Paths.get(args[8]);
+		Path total = out.resolveSibling(out.getFileName() + ".map");
+		Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+		Files.deleteIfExists(total);
+		r.setHistogramFile(total);
+		try {
+			r.saveHistogram(tmp, r.plot(iterations, 20), false);
+		} finally {
+			Files.deleteIfExists(total);
+		}
+		Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Renders a descriptor on worker JVMs: <code>java ifs.Coordinator [-k workers] [-u units] [-s scale]
+	 * [-n iterations] [-t timeout ms] [-x jvm option] descriptor.ifs image.png</code>
+	 */
+	public static void main(String[] args) {
+		try {
+			if (args.length > 0 && args[0].equals("--worker")) {
+				worker(java.util.Arrays.copyOfRange(args, 1, args.length));
+				return;
+			}
+			int workers = Runtime.getRuntime().availableProcessors(), units = 0, iterations = 10_000_000;
+			long timeout = 0;
+			double scale = 400;
+			List<String> options = new ArrayList<>();
+			int a = 0;
+			for (; a + 1 < args.length && args[a].startsWith("-"); a += 2) {
+				switch (args[a]) {
+					case "-k": workers = Integer.parseInt(args[a + 1]); break;
+					case "-u": units = Integer.parseInt(args[a + 1]); break;
+					case "-s": scale = Double.parseDouble(args[a + 1]); break;
+					case "-n": iterations = Integer.parseInt(args[a + 1]); break;
+					case "-t": timeout = Long.parseLong(args[a + 1]); break;
+					case "-x": options.add(args[a + 1]); break;
+					default: throw new IllegalArgumentException("unknown option " + args[a]);
+				}
+			}
+			if (args.length - a != 2) {
+				System.out.println("Usage: java ifs.Coordinator [-k workers] [-u units] [-s scale] [-n iterations] " +
+						"[-t timeout ms] [-x jvm option] descriptor.ifs image.png");
+				System.exit(1);
+			}
+			Coordinator c = new Coordinator(Paths.get(args[a]), 0, 0, scale);
+			c.setWorkers(workers);
+			c.setUnits(units);
+			c.setTimeout(timeout);
+			c.setJvmOptions(options);
+			Path merged = Files.createTempFile("ifs", ".hist");
+			long start = System.nanoTime();
+			try (HistogramFile f = c.render(iterations, merged)) {
+				f.draw(new Vector3f(), Paths.get(args[a + 1]));
+				System.out.println(f.iterations + " iterations on " + workers + " workers in " +
+						(System.nanoTime() - start) / 1_000_000 + " ms");
+			} finally {
+				Files.delete(merged);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
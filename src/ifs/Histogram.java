@@ -0,0 +1,256 @@
+package ifs;
+
+/**
+ * Hit counts and colors of the pixels of a render (or the voxels of a 3D render). Each pixel stores its number of
+ * hits and three color components: the sums of the colors of its hits, or their blend, depending on the color mode.
+ * Pixels are stored in the order of the histogram's {@link Layout}; use {@link #index(int, int)} rather than
+ * computing indices, and iterate by coordinates when the order matters.
+ * @see ArrayHistogram
+ * @see OffHeapHistogram
+ */
+public abstract class Histogram {
+
+	/**
+	 * Orders in which pixels are stored
+	 */
+	public enum Layout {
+		/**
+		 * Row by row (and plane by plane for voxels)
+		 */
+		ROW_MAJOR,
+		/**
+		 * Square tiles of 16x16 pixels (cubes of 8x8x8 voxels) stored row by row, each in Z-order, so that pixels
+		 * close together on the canvas are close together in memory. Canvases are padded to whole tiles.
+		 */
+		MORTON
+	}
+
+	/**
+	 * log2 of the side of a tile in 2D and 3D
+	 */
+	private static final int TILE = 4, TILE3 = 3;
+
+	protected final int width, height, depth;
+	protected final Renderer.ColorMode colorMode;
+	protected final boolean sum;
+	protected final Layout layout;
+	private final boolean morton;
+	private final int size;
+	/**
+	 * Tiles per row and per plane in the Morton layout
+	 */
+	private final int tilesX, tilesXY;
+
+	/**
+	 * @param depth number of planes of a voxel grid, 1 for an image
+	 * @param colorMode accumulation of the colors of a pixel's hits
+	 * @param layout storage order of the pixels
+	 */
+	protected Histogram(int width, int height, int depth, Renderer.ColorMode colorMode, Layout layout) {
+		long size = size(width, height, depth, layout);
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("histogram too large: " + width + "x" + height + "x" + depth);
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.colorMode = colorMode;
+		this.sum = colorMode == Renderer.ColorMode.SUM;
+		this.layout = layout;
+		this.morton = layout == Layout.MORTON;
+		this.size = (int) size;
+		int t = (depth == 1)? TILE : TILE3;
+		tilesX = tiles(width, t);
+		tilesXY = tilesX * tiles(height, t);
+	}
+
+	/**
+	 * @return number of pixels stored for a canvas, including padding
+	 */
+	public static long size(int width, int height, int depth, Layout layout) {
+		if (layout == Layout.ROW_MAJOR) return (long) width * height * depth;
+		if (depth == 1) return (long) tiles(width, TILE) * tiles(height, TILE) << 2 * TILE;
+		return (long) tiles(width, TILE3) * tiles(height, TILE3) * tiles(depth, TILE3) << 3 * TILE3;
+	}
+
+	private static int tiles(int length, int shift) {
+		return (length + (1 << shift) - 1) >>> shift;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public Renderer.ColorMode getColorMode() {
+		return colorMode;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @return number of pixels stored, including the padding of the layout
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return index of the pixel at <code>(x, y)</code>
+	 */
+	public int index(int x, int y) {
+		if (!morton) return y * width + x;
+		int tile = (y >>> TILE) * tilesX + (x >>> TILE);
+		return tile << 2 * TILE | spread(x & (1 << TILE) - 1) | spread(y & (1 << TILE) - 1) << 1;
+	}
+
+	/**
+	 * @return index of the voxel at <code>(x, y, z)</code>
+	 */
+	public int index(int x, int y, int z) {
+		if (!morton) return (z * height + y) * width + x;
+		int tile = (z >>> TILE3) * tilesXY + (y >>> TILE3) * tilesX + (x >>> TILE3);
+		int m = (1 << TILE3) - 1;
+		return tile << 3 * TILE3 | spread3(x & m) | spread3(y & m) << 1 | spread3(z & m) << 2;
+	}
+
+	/**
+	 * Spreads the 4 bits of <code>v</code> to every other bit
+	 */
+	private static int spread(int v) {
+		v = (v | v << 2) & 0x33;
+		return (v | v << 1) & 0x55;
+	}
+
+	/**
+	 * Spreads the 3 bits of <code>v</code> to every third bit
+	 */
+	private static int spread3(int v) {
+		return (v & 1) | (v & 2) << 2 | (v & 4) << 4;
+	}
+
+	/**
+	 * @param i pixel index
+	 * @return number of hits of the pixel
+	 */
+	public abstract long count(int i);
+
+	/**
+	 * @param i pixel index
+	 * @param c color component, <code>R</code>, <code>G</code> or <code>B</code>
+	 * @return stored color component: the sum of the hits' components, or their blend
+	 */
+	public abstract double value(int i, int c);
+
+	/**
+	 * Overwrites a pixel
+	 * @param i pixel index
+	 * @param n number of hits
+	 */
+	protected abstract void set(int i, long n, double r, double g, double b);
+
+	/**
+	 * Counts a hit and accumulates its color
+	 * @param i pixel index
+	 */
+	public abstract void add(int i, double r, double g, double b);
+
+	/**
+	 * Like {@link #add(int, double, double, double)} for a histogram shared between threads, for <code>n</code> hits
+	 * whose colors were already accumulated. Each component is updated atomically on its own, so blended colors
+	 * depend on the order the updates land in; sums do not.
+	 * @param i pixel index
+	 * @param n number of hits
+	 */
+	public abstract void addAtomic(int i, long n, double r, double g, double b);
+
+	/**
+	 * Resets all pixels to no hits
+	 */
+	public abstract void clear();
+
+	/**
+	 * @param i pixel index
+	 * @param c color component, <code>R</code>, <code>G</code> or <code>B</code>
+	 * @return color the pixel is drawn with: the mean color of its hits, or their blend
+	 */
+	public double color(int i, int c) {
+		if (!sum) return value(i, c);
+		long n = count(i);
+		return (n == 0)? 0 : value(i, c) / n;
+	}
+
+	/**
+	 * @return highest hit count of any pixel
+	 */
+	public long maxCount() {
+		return maxCount(0, size());
+	}
+
+	/**
+	 * @return highest hit count of the pixels <code>[start, end)</code>
+	 */
+	public long maxCount(int start, int end) {
+		long max = 0;
+		for (int i = start; i < end; i++) {
+			if (count(i) > max) max = count(i);
+		}
+		return max;
+	}
+
+	/**
+	 * Adds the pixels <code>[start, end)</code> of a histogram of the same size and color mode to this one. Color
+	 * sums are added; blended colors are averaged, weighted by hits. Only the pixels hit are visited when
+	 * <code>from</code> is sparse.
+	 */
+	public void merge(Histogram from, int start, int end) {
+		if (from instanceof SparseHistogram && !((SparseHistogram) from).isDense()) {
+			((SparseHistogram) from).mergeInto(this, start, end);
+			return;
+		}
+		for (int i = start; i < end; i++) {
+			long m = from.count(i);
+			if (m != 0) merge(i, m, from.value(i, 0), from.value(i, 1), from.value(i, 2));
+		}
+	}
+
+	/**
+	 * Adds <code>m</code> hits with accumulated color components to a pixel
+	 */
+	void merge(int i, long m, double r, double g, double b) {
+		long n = count(i);
+		set(i, n + m, merge(value(i, 0), n, r, m), merge(value(i, 1), n, g, m), merge(value(i, 2), n, b, m));
+	}
+
+	/**
+	 * @return color component of <code>n</code> hits merged with one of <code>m</code> hits
+	 */
+	protected double merge(double a, long n, double b, long m) {
+		return sum? a + b : (a * n + b * m) / (n + m);
+	}
+
+	/**
+	 * Copies the pixels of a histogram of the same size and color mode into this empty one, exactly as they are
+	 */
+	public void copy(Histogram from) {
+		for (int i = 0, n = size(); i < n; i++) {
+			long m = from.count(i);
+			if (m != 0) set(i, m, from.value(i, 0), from.value(i, 1), from.value(i, 2));
+		}
+	}
+
+	/**
+	 * Adds a histogram of the same size and color mode to this one
+	 */
+	public void merge(Histogram from) {
+		merge(from, 0, size());
+	}
+}
@@ -0,0 +1,472 @@
+package ifs;
+
+import utils.PngWriter;
+import utils.math.geom.Vector3f;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Histogram file of a render, or of a shard of one: renders split across processes or machines (see
+ * {@link Renderer#setShard(int, int)}) save their shards in this format, and shards are merged and drawn tile by
+ * tile, never holding more than a tile of each shard in memory.
+ * <p>
+ * Files start with a {@value #HEADER} byte header (magic, version, width, height, color mode, tile side, flags,
+ * descriptor fingerprint, seed of the chunks' start points, iterations, highest hit count, bounds, pixel scale, and
+ * the shard's index and the number of shards),
+ * followed by the offset and length of each tile and then the tiles. Tiles are squares of {@value #TILE} pixels a side,
+ * row by row, clipped by the edges of the canvas; each holds the counts of its pixels row by row, then their three
+ * color components, deflated in compressed files. Tiles without hits are left out. All values are little-endian.
+ */
+public class HistogramFile implements Closeable {
+
+	private static final int MAGIC = 0x49465353; // "IFSS"
+	private static final int VERSION = 2;
+	private static final int HEADER = 128;
+	private static final int DEFLATE = 1;
+
+	/**
+	 * Side of a tile, in pixels
+	 */
+	public static final int TILE = 64;
+
+	public final int width, height;
+	public final Renderer.ColorMode colorMode;
+	/**
+	 * Fingerprint of the descriptor, see {@link IFSDescriptor#fingerprint()}
+	 */
+	public final long fingerprint;
+	/**
+	 * Seed of the chunks' start points, 0 if the histogram was not plotted in chunks
+	 */
+	public final long seed;
+	/**
+	 * Index of the shard the file holds, and number of shards of the render: 0 and 1 for a whole render
+	 */
+	public final int shard, shards;
+	public final long iterations;
+	public final double xmin, xmax, ymin, ymax, pixelScale;
+	private long maxCount;
+
+	private final int tilesX, tiles;
+	private Path file;
+	private FileChannel channel;
+	private boolean compressed;
+	private long[] offsets;
+	private int[] lengths;
+
+	/**
+	 * Describes a histogram to write
+	 * @param fingerprint fingerprint of the descriptor
+	 * @param seed seed of the chunks' start points
+	 * @param shard index of the shard, see {@link Renderer#setShard(int, int)}
+	 * @param shards number of shards
+	 * @param iterations number of iterations plotted
+	 */
+	public HistogramFile(int width, int height, Renderer.ColorMode colorMode, long fingerprint, double xmin,
+			double xmax, double ymin, double ymax, double pixelScale, long seed, int shard, int shards,
+			long iterations) {
+		this.width = width;
+		this.height = height;
+		this.colorMode = colorMode;
+		this.fingerprint = fingerprint;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.ymin = ymin;
+		this.ymax = ymax;
+		this.pixelScale = pixelScale;
+		this.seed = seed;
+		this.shard = shard;
+		this.shards = shards;
+		this.iterations = iterations;
+		tilesX = (width + TILE - 1) / TILE;
+		tiles = tilesX * ((height + TILE - 1) / TILE);
+	}
+
+	/**
+	 * Opens a histogram file to read its tiles
+	 * @throws IOException if the file cannot be read or is not a histogram file
+	 */
+	public static HistogramFile open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = read(channel, 0, HEADER);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException(file + " is not a histogram file");
+			int width = header.getInt(), height = header.getInt();
+			Renderer.ColorMode colorMode = Renderer.ColorMode.values()[header.getInt()];
+			if (header.getInt() != TILE) throw new IOException(file + " has tiles of another size");
+			int flags = header.getInt();
+			header.getInt();
+			long fingerprint = header.getLong(), seed = header.getLong(), iterations = header.getLong();
+			long maxCount = header.getLong();
+			double xmin = header.getDouble(), xmax = header.getDouble(), ymin = header.getDouble(),
+					ymax = header.getDouble(), pixelScale = header.getDouble();
+			HistogramFile f = new HistogramFile(width, height, colorMode, fingerprint, xmin, xmax, ymin, ymax,
+					pixelScale, seed, header.getInt(), header.getInt(), iterations);
+			if (f.shards < 1 || f.shard < 0 || f.shard >= f.shards)
+				throw new IOException(file + " holds shard " + f.shard + " of " + f.shards);
+			f.maxCount = maxCount;
+			f.file = file;
+			f.channel = channel;
+			f.compressed = (flags & DEFLATE) != 0;
+			f.offsets = new long[f.tiles];
+			f.lengths = new int[f.tiles];
+			ByteBuffer table = read(channel, HEADER, 12 * f.tiles);
+			for (int t = 0; t < f.tiles; t++) {
+				f.offsets[t] = table.getLong();
+				f.lengths[t] = table.getInt();
+			}
+			return f;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return <code>length</code> bytes of a channel from <code>position</code>
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("truncated file");
+		}
+		return buffer.flip();
+	}
+
+	private static void write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+	}
+
+	/**
+	 * @return highest hit count of any pixel
+	 */
+	public long getMaxCount() {
+		return maxCount;
+	}
+
+	/**
+	 * @return number of tiles, row by row
+	 */
+	public int tiles() {
+		return tiles;
+	}
+
+	private int tileX(int t) {
+		return t % tilesX * TILE;
+	}
+
+	private int tileY(int t) {
+		return t / tilesX * TILE;
+	}
+
+	private int tileWidth(int t) {
+		return Math.min(TILE, width - tileX(t));
+	}
+
+	private int tileHeight(int t) {
+		return Math.min(TILE, height - tileY(t));
+	}
+
+	/**
+	 * @return whether a file holds a shard of the same render: same descriptor, canvas, color mode, seed and number
+	 * of shards
+	 */
+	public boolean matches(HistogramFile f) {
+		return f.width == width && f.height == height && f.colorMode == colorMode && f.fingerprint == fingerprint &&
+				f.xmin == xmin && f.xmax == xmax && f.ymin == ymin && f.ymax == ymax && f.pixelScale == pixelScale &&
+				f.seed == seed && f.shards == shards;
+	}
+
+	/**
+	 * Produces tiles to write
+	 */
+	private interface Tiles {
+		/**
+		 * @return histogram of tile <code>t</code>, or <code>null</code> if it has no hits
+		 */
+		ArrayHistogram tile(int t) throws IOException;
+	}
+
+	/**
+	 * Writes a histogram of the described canvas to a file
+	 * @param compress whether to deflate the tiles
+	 */
+	public void write(Path file, Histogram histogram, boolean compress) throws IOException {
+		if (histogram.getWidth() != width || histogram.getHeight() != height || histogram.getColorMode() != colorMode)
+			throw new IllegalArgumentException("histogram does not match the file's canvas");
+		write(file, compress, t -> {
+			ArrayHistogram tile = new ArrayHistogram(tileWidth(t), tileHeight(t), colorMode);
+			boolean hit = false;
+			for (int y = 0; y < tile.getHeight(); y++) {
+				for (int x = 0; x < tile.getWidth(); x++) {
+					int i = histogram.index(tileX(t) + x, tileY(t) + y);
+					long n = histogram.count(i);
+					if (n == 0) continue;
+					tile.set(tile.index(x, y), n, histogram.value(i, 0), histogram.value(i, 1), histogram.value(i, 2));
+					hit = true;
+				}
+			}
+			return hit? tile : null;
+		});
+	}
+
+	private void write(Path file, boolean compress, Tiles source) throws IOException {
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer table = ByteBuffer.allocate(12 * tiles).order(ByteOrder.LITTLE_ENDIAN);
+			Deflater deflater = compress? new Deflater() : null;
+			long position = HEADER + table.capacity();
+			maxCount = 0;
+			for (int t = 0; t < tiles; t++) {
+				ArrayHistogram tile = source.tile(t);
+				if (tile == null) {
+					table.putLong(0).putInt(0);
+					continue;
+				}
+				maxCount = Math.max(maxCount, tile.maxCount());
+				ByteBuffer block = encode(tile, deflater);
+				table.putLong(position).putInt(block.remaining());
+				int length = block.remaining();
+				write(out, position, block);
+				position += length;
+			}
+			if (deflater != null) deflater.end();
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(colorMode.ordinal()).putInt(TILE)
+					.putInt(compress? DEFLATE : 0).putInt(0).putLong(fingerprint).putLong(seed).putLong(iterations)
+					.putLong(maxCount).putDouble(xmin).putDouble(xmax).putDouble(ymin).putDouble(ymax)
+					.putDouble(pixelScale).putInt(shard).putInt(shards).rewind();
+			write(out, 0, header);
+			write(out, HEADER, table.flip());
+		}
+	}
+
+	/**
+	 * @param deflater compressor, <code>null</code> to store the tile as it is
+	 */
+	private static ByteBuffer encode(ArrayHistogram tile, Deflater deflater) {
+		int n = tile.size();
+		ByteBuffer raw = ByteBuffer.allocate(32 * n).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < n; i++) raw.putLong(tile.count(i));
+		for (int i = 0; i < n; i++) {
+			raw.putDouble(tile.value(i, 0)).putDouble(tile.value(i, 1)).putDouble(tile.value(i, 2));
+		}
+		if (deflater == null) return raw.flip();
+		deflater.reset();
+		deflater.setInput(raw.array());
+		deflater.finish();
+		byte[] out = new byte[raw.capacity() / 4];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == out.length) out = Arrays.copyOf(out, 2 * out.length);
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		return ByteBuffer.wrap(out, 0, length);
+	}
+
+	/**
+	 * @return histogram of tile <code>t</code>, <code>null</code> if it has no hits
+	 * @throws IOException if the tile cannot be read
+	 */
+	public ArrayHistogram readTile(int t) throws IOException {
+		if (lengths[t] == 0) return null;
+		ArrayHistogram tile = new ArrayHistogram(tileWidth(t), tileHeight(t), colorMode);
+		int n = tile.size();
+		ByteBuffer block = read(channel, offsets[t], lengths[t]);
+		if (compressed) {
+			Inflater inflater = new Inflater();
+			inflater.setInput(block);
+			ByteBuffer raw = ByteBuffer.allocate(32 * n).order(ByteOrder.LITTLE_ENDIAN);
+			try {
+				while (raw.hasRemaining() && !inflater.finished()) {
+					if (inflater.inflate(raw) == 0 && inflater.needsInput()) break;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(file + ": tile " + t + " is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+			block = raw.flip();
+		}
+		if (block.remaining() != 32 * n) throw new IOException(file + ": tile " + t + " is truncated");
+		for (int i = 0; i < n; i++) {
+			long count = block.getLong(8 * i);
+			if (count == 0) continue;
+			int c = 8 * n + 24 * i;
+			tile.set(i, count, block.getDouble(c), block.getDouble(c + 8), block.getDouble(c + 16));
+		}
+		return tile;
+	}
+
+	/**
+	 * Reads the whole histogram
+	 */
+	public Histogram read() throws IOException {
+		ArrayHistogram histogram = new ArrayHistogram(width, height, colorMode);
+		for (int t = 0; t < tiles; t++) {
+			ArrayHistogram tile = readTile(t);
+			if (tile == null) continue;
+			for (int y = 0; y < tile.getHeight(); y++) {
+				for (int x = 0; x < tile.getWidth(); x++) {
+					int i = tile.index(x, y);
+					histogram.set(histogram.index(tileX(t) + x, tileY(t) + y), tile.count(i), tile.value(i, 0),
+							tile.value(i, 1), tile.value(i, 2));
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Tone maps the histogram tile by tile, as {@link Renderer#drawHistogram(Histogram, Vector3f)} does
+	 */
+	public BufferedImage draw(Vector3f bgColor) throws IOException {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		for (int ty = 0; ty < height; ty += TILE) {
+			drawRow(ty, bgColor, pixels, (height - Math.min(height, ty + TILE)) * width);
+		}
+		return img;
+	}
+
+	/**
+	 * Tone maps the histogram into a PNG file, one row of tiles at a time, bottom row first: only a strip of
+	 * {@value #TILE} rows of the image is held in memory, whatever the size of the canvas.
+	 * @throws IOException if a tile cannot be read or the file cannot be written
+	 */
+	public void draw(Vector3f bgColor, Path png) throws IOException {
+		int[] pixels = new int[TILE * width];
+		try (PngWriter out = new PngWriter(new BufferedOutputStream(Files.newOutputStream(png)), width, height)) {
+			for (int ty = (height - 1) / TILE * TILE; ty >= 0; ty -= TILE) {
+				drawRow(ty, bgColor, pixels, 0);
+				out.write(pixels, 0, Math.min(TILE, height - ty));
+			}
+		}
+	}
+
+	/**
+	 * Tone maps the row of tiles from canvas row <code>y</code> into image rows, top row first
+	 * @param offset index in <code>pixels</code> of the row's first pixel
+	 */
+	private void drawRow(int y, Vector3f bgColor, int[] pixels, int offset) throws IOException {
+		int rows = Math.min(TILE, height - y);
+		Arrays.fill(pixels, offset, offset + rows * width, Renderer.pack(bgColor.x, bgColor.y, bgColor.z));
+		double logMaxFreq = Math.log(maxCount);
+		for (int t = y / TILE * tilesX; t < (y / TILE + 1) * tilesX; t++) {
+			ArrayHistogram tile = readTile(t);
+			if (tile == null) continue;
+			for (int j = 0; j < tile.getHeight(); j++) {
+				int row = offset + (rows - 1 - j) * width + tileX(t);
+				for (int x = 0; x < tile.getWidth(); x++) {
+					int i = tile.index(x, j);
+					long freq = tile.count(i);
+					if (freq == 0) continue;
+					pixels[row + x] = Renderer.toneMap(bgColor, Math.log(freq) / logMaxFreq, tile.color(i, 0),
+							tile.color(i, 1), tile.color(i, 2));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the shards of a render into a new file, tile by tile. Hit counts and color sums are added; blended
+	 * colors are averaged, weighted by hits. The merged file holds the whole render.
+	 * @param shards files of every shard of the render, once each, in any order
+	 * @param compress whether to deflate the merged tiles
+	 * @return the merged file, open
+	 * @throws IOException if a shard cannot be read, belongs to another render or was plotted from another seed,
+	 * appears twice, or is missing
+	 */
+	public static HistogramFile merge(List<Path> shards, Path file, boolean compress) throws IOException {
+		List<HistogramFile> in = new ArrayList<>();
+		try {
+			for (Path shard : shards) in.add(open(shard));
+			HistogramFile first = in.get(0);
+			HistogramFile[] found = new HistogramFile[first.shards];
+			long iterations = 0;
+			for (HistogramFile f : in) {
+				if (f.seed != first.seed)
+					throw new IOException(f.file + " was plotted from another seed than " + first.file);
+				if (!first.matches(f)) throw new IOException(f.file + " is not a shard of the render of " + first.file);
+				if (found[f.shard] != null)
+					throw new IOException(f.file + " and " + found[f.shard].file + " both hold shard " + f.shard);
+				found[f.shard] = f;
+				iterations += f.iterations;
+			}
+			for (int k = 0; k < found.length; k++) {
+				if (found[k] == null) throw new IOException("shard " + k + " of " + found.length + " is missing");
+			}
+			new HistogramFile(first.width, first.height, first.colorMode, first.fingerprint, first.xmin, first.xmax,
+					first.ymin, first.ymax, first.pixelScale, first.seed, 0, 1, iterations).write(file, compress, t -> {
+				ArrayHistogram total = null;
+				for (HistogramFile f : in) {
+					ArrayHistogram tile = f.readTile(t);
+					if (tile == null) continue;
+					if (total == null) total = tile;
+					else total.merge(tile);
+				}
+				return total;
+			});
+			return open(file);
+		} finally {
+			for (HistogramFile f : in) f.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) channel.close();
+	}
+
+	/**
+	 * Merges shards and draws the result: <code>java ifs.HistogramFile [-o merged] [-z] image.png shard...</code>.
+	 * <code>-o</code> keeps the merged histogram in a file, deflated with <code>-z</code>.
+	 */
+	public static void main(String[] args) {
+		Path merged = null;
+		boolean compress = false;
+		int a = 0;
+		for (; a < args.length && args[a].startsWith("-"); a++) {
+			if (args[a].equals("-z")) compress = true;
+			else if (args[a].equals("-o") && a + 1 < args.length) merged = Paths.get(args[++a]);
+		}
+		if (args.length - a < 2) {
+			System.out.println("Usage: java ifs.HistogramFile [-o merged] [-z] image.png shard...");
+			System.exit(1);
+		}
+		Path image = Paths.get(args[a]);
+		List<Path> shards = new ArrayList<>();
+		for (a++; a < args.length; a++) shards.add(Paths.get(args[a]));
+		try {
+			Path out = (merged != null)? merged : Files.createTempFile("ifs", ".hist");
+			try (HistogramFile f = merge(shards, out, compress)) {
+				f.draw(new Vector3f(), image);
+				System.out.println(shards.size() + " shards, " + f.iterations + " iterations, " + f.width + "x" +
+						f.height);
+			} finally {
+				if (merged == null) Files.delete(out);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
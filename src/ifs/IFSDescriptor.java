@@ -1,8 +1,18 @@
 package ifs;
 
+import utils.RandomStreams;
+import utils.math.AliasTable;
+import utils.math.parser.AffineKernel;
+import utils.math.parser.Block;
+import utils.math.parser.Expression;
+import utils.math.parser.Kernel;
+import utils.math.parser.KernelCompiler;
 import utils.math.parser.MathParser2;
+import utils.math.parser.StackKernel;
+import utils.math.parser.TreeKernel;
 
 import java.util.*;
+import java.util.random.RandomGenerator;
 
 public class IFSDescriptor {
 	
@@ -13,11 +23,35 @@ public class IFSDescriptor {
 	
 	public static final int R = 0, G = 1, B = 2, FREQ = 3, X = 3, Y = 4;
 	
+	/**
+	 * Strategies for evaluating the functions
+	 */
+	public enum Backend {
+		/** walk the compiled expression trees */
+		INTERPRETED,
+		/** evaluate encoded opcode programs on a primitive stack */
+		STACK,
+		/** generate a JVM class per function, falling back to <code>INTERPRETED</code> if that fails */
+		BYTECODE
+	}
+	
+	/**
+	 * Environment slots of the built-in variables. Slots below <code>I</code> hold the point itself
+	 * (<code>Z = 5</code> in 3D), global variables start at <code>GLOBALS</code>.
+	 */
+	protected static final int I = 6, R2 = 7, RADIUS = 8, THETA = 9, ALPHA = 10, BETA = 11, GAMMA = 12,
+			PI = 13, E = 14, GLOBALS = 15;
+	
 	public double xmin, xmax, ymin, ymax;
 	
 	public String name;
 	
-	protected Random rand;
+	/**
+	 * Random number streams for function selection; {@link #rand} is stream 0
+	 */
+	protected RandomStreams streams;
+	
+	protected RandomGenerator rand;
 	
 	protected ParseTree parseTree;
 	
@@ -25,6 +59,34 @@ public class IFSDescriptor {
 	
 	protected Map<String, Double> globals;
 	
+	/**
+	 * Variable name to environment slot bindings
+	 */
+	protected Map<String, Integer> slots;
+	
+	/**
+	 * Initial environment: constants and global variables in their slots
+	 */
+	protected double[] environment;
+	
+	/**
+	 * First environment slot after the globals, holding the temporaries shared between a function's expressions
+	 * and its staged outputs
+	 */
+	protected int tempBase;
+	
+	/**
+	 * First environment slot after the temporaries, used as evaluation stack by the <code>STACK</code> backend
+	 */
+	protected int stackBase;
+	
+	protected Backend backend = Backend.INTERPRETED;
+	
+	/**
+	 * Samples functions according to their probabilities
+	 */
+	protected AliasTable selector;
+	
 	IFSDescriptor(List<String> source) throws Exception {
 		functions = new ArrayList<>();
 		globals = new HashMap<>();
@@ -57,43 +119,273 @@ public class IFSDescriptor {
 				} catch(Exception e) {/* skip if parse fails */}
 			});
 		}
-		rand = new Random();
+		bind();
+		buildSelector();
+		setStreams(new RandomStreams());
 	}
 	
 	public IFSDescriptor(List<String> source, int randomSeed) throws Exception{
 		this(source);
-		rand = new Random(randomSeed);
+		setStreams(new RandomStreams(randomSeed));
 	}
 	
 	public IFSDescriptor() {}
 	
 	/**
-	 * Randomly picks a function from the list and runs it with the given variable mappings
+	 * @return built-in variable names and their environment slots
+	 */
+	protected Map<String, Integer> builtins() {
+		Map<String, Integer> b = new HashMap<>();
+		b.put("_x", X);
+		b.put("_y", Y);
+		b.put("_r", R);
+		b.put("_g", G);
+		b.put("_b", B);
+		b.put("_i", I);
+		b.put("_R2", R2);
+		b.put("_R", RADIUS);
+		b.put("_theta", THETA);
+		return b;
+	}
+	
+	/**
+	 * Assigns every variable a slot in the environment and compiles the functions against those slots.
+	 * Globals shadow built-in variables, but not the constants <code>_pi</code> and <code>_e</code>.
+	 * @throws Exception if a function references an unknown symbol
+	 */
+	protected void bind() throws Exception {
+		slots = builtins();
+		tempBase = GLOBALS;
+		for (String name : globals.keySet()) {
+			slots.put(name, tempBase++);
+		}
+		slots.put("_pi", PI);
+		slots.put("_e", E);
+		environment = new double[tempBase];
+		environment[PI] = Math.PI;
+		environment[E] = Math.E;
+		globals.forEach((name, value) -> {
+			if (slots.get(name) >= GLOBALS) environment[slots.get(name)] = value;
+		});
+		for (Function f : functions) {
+			f.compile(slots);
+		}
+		optimize();
+	}
+	
+	/**
+	 * Optimizes the functions against the current values of the constants and globals, sizes the temporary and
+	 * stack regions of the environment, and rebuilds the kernels
+	 */
+	protected void optimize() {
+		int temps = 0, depth = 0;
+		for (Function f : functions) {
+			f.block = Block.optimize(f.outputs(), environment, slot -> slot >= PI && slot < tempBase, tempBase);
+			temps = Math.max(temps, f.block.scratch());
+			f.derived = 0;
+			BitSet reads = f.block.reads();
+			for (int slot = I + 1; slot < GLOBALS; slot++) {
+				if (reads.get(slot)) f.derived |= 1 << slot;
+			}
+			depth = Math.max(depth, f.block.depth());
+		}
+		stackBase = tempBase + temps;
+		environment = Arrays.copyOf(environment, stackBase + depth);
+		functions.forEach(Function::link);
+	}
+	
+	/**
+	 * Selects how the functions are evaluated
+	 * @param backend evaluation strategy
+	 */
+	public void setBackend(Backend backend) {
+		this.backend = backend;
+		functions.forEach(Function::link);
+	}
+	
+	public Backend getBackend() {
+		return backend;
+	}
+	
+	/**
+	 * Sets the value of a global variable
+	 * @param name variable name
+	 * @param value new value
+	 */
+	public void setGlobal(String name, double value) {
+		globals.put(name, value);
+		Integer slot = slots.get(name);
+		if (slot != null && slot >= GLOBALS) {
+			environment[slot] = value;
+			optimize(); // globals are folded into the functions
+		}
+	}
+	
+	/**
+	 * Sets the random number streams used to select functions, and resets the descriptor's own generator to
+	 * stream 0
+	 * @param streams seeded streams of the desired algorithm
+	 */
+	public void setStreams(RandomStreams streams) {
+		this.streams = streams;
+		rand = streams.stream(0);
+	}
+	
+	/**
+	 * @param index stream index
+	 * @return a new generator for the given selection stream, for callers iterating on their own thread
+	 */
+	public RandomGenerator stream(long index) {
+		return streams.stream(index);
+	}
+	
+	/**
+	 * @return a hash of the bounds, globals, functions and selection streams: equal for descriptors read from the same
+	 *         source with the same seed, so that parts of a render can be checked to belong together
+	 */
+	public long fingerprint() {
+		StringBuilder s = new StringBuilder().append(name).append(xmin).append(xmax).append(ymin).append(ymax)
+				.append(new TreeMap<>(globals));
+		for (Function f : functions) {
+			s.append(f.prob).append(f.xrpn).append(f.yrpn).append(f.rrpn).append(f.grpn).append(f.brpn);
+		}
+		long h = streams.stream(0).nextLong();
+		for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		return h;
+	}
+	
+	/**
+	 * Describes how each function is evaluated: by the affine matrix kernel or by the selected backend
+	 * @return one line per function, preceded by a summary line
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		long affine = functions.stream().filter(f -> f.affine).count();
+		sb.append(name).append(": ").append(affine).append(" of ").append(functions.size())
+				.append(" functions affine\n");
+		for (int i = 0; i < functions.size(); i++) {
+			Function f = functions.get(i);
+			sb.append("  FUNCTION ").append(i).append(" (PROB = ").append(f.prob).append("): ")
+					.append(f.affine? "affine" : backend.toString().toLowerCase()).append("\n");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Randomly picks a function from the list, using the descriptor's generator, and runs it on the given point
 	 * @param p input point
 	 * @param i iteration
 	 * @return {x, y, r, g, b}
 	 * @throws Exception if the evaluation fails
 	 */
-	double[] runFunc(double[] p, int i) throws Exception {
-		Map<String, Double> vars = new HashMap<>();
-		vars.put("_x", p[X]);
-		vars.put("_y", p[Y]);
-		vars.put("_r", p[R]);
-		vars.put("_g", p[G]);
-		vars.put("_b", p[B]);
-		vars.put("_i", (double) i);
-		vars.put("_R2", p[X] * p[X] + p[Y] * p[Y]);
-		vars.put("_R", Math.sqrt(p[X] * p[X] + p[Y] * p[Y]));
-		vars.put("_theta", Math.atan2(p[Y], p[X]));
-		vars.putAll(globals);
-		double r = rand.nextDouble();
-		double a = 0.0;
-		for (Function f : functions) {
-			if (r < (a += f.prob)) {
-				return f.run(vars);
-			}
+	protected double[] runFunc(double[] p, int i) throws Exception {
+		return runFunc(p, i, rand);
+	}
+	
+	/**
+	 * Randomly picks a function from the list and runs it on the given point. Each call evaluates in its own copy
+	 * of the environment, so several threads can iterate the same descriptor, each with its own generator.
+	 * @param p input point
+	 * @param i iteration
+	 * @param rand generator used to select the function
+	 * @return {x, y, r, g, b}
+	 * @throws Exception if the evaluation fails
+	 */
+	protected double[] runFunc(double[] p, int i, RandomGenerator rand) throws Exception {
+		double[] state = newState();
+		System.arraycopy(p, 0, state, 0, p.length);
+		iterate(state, i, rand);
+		return Arrays.copyOf(state, p.length);
+	}
+	
+	/**
+	 * Creates an iteration state for {@link #iterate(double[], int, RandomGenerator)}: the point components
+	 * (indexed by <code>R, G, B, X, Y</code>) followed by the evaluation environment. A state reflects the globals
+	 * at the time it was created.
+	 * @return new state, at the origin with black color
+	 */
+	public double[] newState() {
+		return environment.clone();
+	}
+	
+	/**
+	 * Randomly picks a function and applies it to the point in <code>state</code>, in place and without
+	 * allocating. Several threads can iterate the same descriptor, each with its own state and generator.
+	 * @param state iteration state from {@link #newState()}
+	 * @param i iteration
+	 * @param rand generator used to select the function
+	 */
+	public void iterate(double[] state, int i, RandomGenerator rand) {
+		Function f = select(rand);
+		state[I] = i;
+		derive(state, f.derived);
+		f.kernel.apply(state, state);
+	}
+	
+	/**
+	 * Like {@link #iterate(double[], int, RandomGenerator)}, selecting with the descriptor's generator
+	 */
+	public void iterate(double[] state, int i) {
+		iterate(state, i, rand);
+	}
+	
+	/**
+	 * Validates the function probabilities and builds the alias table used to select functions. Probabilities that
+	 * do not add up to 1, such as ones rounded to a few decimals, are used as relative weights, with a warning.
+	 * @throws Exception if a probability is negative or not a number, or they add up to 0
+	 */
+	protected void buildSelector() throws Exception {
+		double[] probs = functions.stream().mapToDouble(f -> f.prob).toArray();
+		double sum = Arrays.stream(probs).sum();
+		if (!(sum > 0) || Double.isInfinite(sum) || Arrays.stream(probs).anyMatch(p -> !(p >= 0))) {
+			throw new Exception("Invalid probabilities: " + Arrays.toString(probs));
 		}
-		throw new Exception("Probabilities did not add up");
+		if (Math.abs(sum - 1.0) > 1e-6) {
+			System.err.println("Probabilities of " + String.valueOf(name).trim() + " add up to " + sum +
+					", normalizing them: " + Arrays.toString(probs));
+		}
+		selector = new AliasTable(probs);
+	}
+	
+	/**
+	 * Sets the probability of every function and rebuilds the selector
+	 * @param probs new probabilities, in function order
+	 * @throws Exception if a probability is negative or not a number, or they add up to 0
+	 */
+	public void setProbabilities(double... probs) throws Exception {
+		if (probs.length != functions.size()) {
+			throw new Exception("Expected " + functions.size() + " probabilities, got " + probs.length);
+		}
+		double[] old = functions.stream().mapToDouble(f -> f.prob).toArray();
+		for (int i = 0; i < probs.length; i++) functions.get(i).prob = probs[i];
+		try {
+			buildSelector();
+		} catch (Exception e) {
+			for (int i = 0; i < old.length; i++) functions.get(i).prob = old[i];
+			throw e;
+		}
+	}
+	
+	/**
+	 * Randomly picks a function according to the probabilities, in constant time
+	 * @param rand generator to draw from
+	 * @return the selected function
+	 */
+	protected Function select(RandomGenerator rand) {
+		return functions.get(selector.sample(rand.nextDouble()));
+	}
+	
+	/**
+	 * Computes the derived built-in variables of the point in <code>env</code>
+	 * @param env environment holding the current point
+	 * @param needed bit mask of the slots to compute, see {@link Function#derived}
+	 */
+	protected void derive(double[] env, int needed) {
+		if ((needed & (1 << R2 | 1 << RADIUS)) != 0) {
+			env[R2] = env[X] * env[X] + env[Y] * env[Y];
+			if ((needed & 1 << RADIUS) != 0) env[RADIUS] = Math.sqrt(env[R2]);
+		}
+		if ((needed & 1 << THETA) != 0) env[THETA] = Math.atan2(env[Y], env[X]);
 	}
 	
 	/**
@@ -101,7 +393,22 @@ public class IFSDescriptor {
 	 */
 	protected class Function {
 		protected List<String> xrpn, yrpn, rrpn, grpn, brpn;
-		public double prob;
+		protected Expression x, y, r, g, b;
+		protected Block block;
+		protected Kernel kernel;
+		
+		/**
+		 * Bit mask of the derived built-in variables (<code>_R2</code>, <code>_R</code>, <code>_theta</code>, ...)
+		 * the function reads, indexed by slot
+		 */
+		protected int derived;
+		
+		/**
+		 * Whether the function is affine and evaluated as a matrix
+		 */
+		protected boolean affine;
+		protected int size;
+		public double prob; // change through setProbabilities so the selector is rebuilt
 		
 		/**
 		 * Parses the input expression strings into Reverse Polish Notation to simplify later calls
@@ -115,7 +422,6 @@ public class IFSDescriptor {
 		 */
 		public Function(String x, String y, String r, String g, String b, String prob) throws Exception {
 			this.prob = Double.parseDouble(prob);
-			MathParser2.initConstants(new HashMap<>()); // this is necessary here - bug in MathParser2
 			xrpn = MathParser2.toRPN(MathParser2.tokenizeInput(x));
 			yrpn = MathParser2.toRPN(MathParser2.tokenizeInput(y));
 			rrpn = MathParser2.toRPN(MathParser2.tokenizeInput(r));
@@ -124,25 +430,51 @@ public class IFSDescriptor {
 		}
 		
 		/**
-		 * Runs the function with the given variable mappings
-		 * @param vars variable mappings
-		 * @return {x, y, r, g, b}
-		 * @throws Exception if the evaluation fails
+		 * Compiles the RPN expressions against the given variable bindings
+		 * @param slots variable name to environment slot bindings
+		 * @throws Exception if an expression references an unknown symbol
+		 */
+		protected void compile(Map<String, Integer> slots) throws Exception {
+			x = MathParser2.compile(xrpn, slots);
+			y = MathParser2.compile(yrpn, slots);
+			r = MathParser2.compile(rrpn, slots);
+			g = MathParser2.compile(grpn, slots);
+			b = MathParser2.compile(brpn, slots);
+		}
+		
+		/**
+		 * @return the compiled expressions, indexed by point component
+		 */
+		protected Expression[] outputs() {
+			Expression[] e = new Expression[5];
+			e[X] = x;
+			e[Y] = y;
+			e[R] = r;
+			e[G] = g;
+			e[B] = b;
+			return e;
+		}
+		
+		/**
+		 * Builds the kernel evaluating the optimized block with the descriptor's backend
 		 */
-		public double[] run(Map<String, Double> vars) throws Exception {
-			MathParser2.initConstants(vars);
-			double x = MathParser2.parseRPN(xrpn);
-			double y = MathParser2.parseRPN(yrpn);
-			double r = MathParser2.parseRPN(rrpn);
-			double g = MathParser2.parseRPN(grpn);
-			double b = MathParser2.parseRPN(brpn);
-			double[] p = new double[5];
-			p[X] = x;
-			p[Y] = y;
-			p[R] = r;
-			p[G] = g;
-			p[B] = b;
-			return p;
+		protected void link() {
+			size = block.outputs.length;
+			// coordinates may only depend on coordinates, colors on colors
+			int[] groups = new int[size];
+			Arrays.fill(groups, R, B + 1, 1);
+			kernel = AffineKernel.of(block, groups);
+			affine = kernel != null;
+			if (affine) return;
+			if (backend == Backend.BYTECODE) {
+				try {
+					kernel = KernelCompiler.compile(block);
+					return;
+				} catch (Exception | LinkageError e) {
+					System.err.println("Bytecode generation failed, using the interpreter: " + e);
+				}
+			}
+			kernel = (backend == Backend.STACK)? new StackKernel(block, stackBase) : new TreeKernel(block);
 		}
 	}
 	
@@ -0,0 +1,235 @@
+package ifs;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Histogram outside the heap, in direct or memory-mapped buffers, for canvases the heap cannot hold. A histogram
+ * mapped onto a file is the file: the operating system pages hits in and out of it, and mapping the file again after
+ * a restart gives the histogram back as it was.
+ * <p>
+ * Files start with a {@value #HEADER} byte header (magic, version, width, height, depth, color mode and layout,
+ * then {@value #METADATA} longs of {@link #getMetadata(int) metadata}), followed by the counts of all pixels and then
+ * their colors, three per pixel, all little-endian. Each buffer covers 2<sup>26</sup> pixels, so no pixel straddles
+ * two buffers.
+ */
+public class OffHeapHistogram extends Histogram {
+
+	private static final int MAGIC = 0x49465348; // "IFSH"
+	private static final int VERSION = 1;
+	private static final int HEADER = 64;
+	private static final int SHIFT = 26, MASK = (1 << SHIFT) - 1;
+	
+	/**
+	 * Number of longs of metadata in the header, and their offset
+	 */
+	public static final int METADATA = 4;
+	private static final int METADATA_OFFSET = 32;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle DOUBLES =
+			MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final ByteBuffer header;
+	private final ByteBuffer[] counts, colors;
+
+	private OffHeapHistogram(int width, int height, int depth, Renderer.ColorMode colorMode, Layout layout,
+			ByteBuffer header, ByteBuffer[] counts, ByteBuffer[] colors) {
+		super(width, height, depth, colorMode, layout);
+		this.header = header;
+		this.counts = counts;
+		this.colors = colors;
+	}
+
+	/**
+	 * Creates a histogram in direct buffers
+	 * @param depth number of planes of a voxel grid, 1 for an image
+	 */
+	public static OffHeapHistogram allocate(int width, int height, int depth, Renderer.ColorMode colorMode,
+			Layout layout) {
+		long n = size(width, height, depth, layout);
+		ByteBuffer[] counts = new ByteBuffer[buffers(n)], colors = new ByteBuffer[buffers(n)];
+		for (int j = 0; j < counts.length; j++) {
+			int pixels = pixels(n, j);
+			counts[j] = ByteBuffer.allocateDirect(8 * pixels).order(ByteOrder.LITTLE_ENDIAN);
+			colors[j] = ByteBuffer.allocateDirect(24 * pixels).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new OffHeapHistogram(width, height, depth, colorMode, layout,
+				ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN), counts, colors);
+	}
+
+	/**
+	 * Maps a histogram onto a file. A new or empty file is sized for the canvas (sparsely, where the file system
+	 * allows) with no hits; an existing histogram of the same canvas, color mode and layout is mapped as it is.
+	 * @param depth number of planes of a voxel grid, 1 for an image
+	 * @throws IOException if the file cannot be mapped, or holds a histogram of another canvas
+	 */
+	public static OffHeapHistogram map(Path file, int width, int height, int depth, Renderer.ColorMode colorMode,
+			Layout layout) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			if (channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(depth)
+						.putInt(colorMode.ordinal()).putInt(layout.ordinal()).rewind();
+				channel.write(header, 0);
+				long length = HEADER + 32 * size(width, height, depth, layout);
+				channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+			}
+			OffHeapHistogram h = map(file, channel);
+			if (h.width != width || h.height != height || h.depth != depth || h.colorMode != colorMode ||
+					h.layout != layout) {
+				throw new IOException(file + " holds a " + h.width + "x" + h.height + "x" + h.depth + " " +
+						h.colorMode + " " + h.layout + " histogram");
+			}
+			return h;
+		}
+	}
+
+	/**
+	 * Maps the histogram stored in a file, whatever its canvas
+	 * @throws IOException if the file cannot be mapped or does not hold a histogram
+	 */
+	public static OffHeapHistogram open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return map(file, channel);
+		}
+	}
+
+	private static OffHeapHistogram map(Path file, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION)
+			throw new IOException(file + " is not a histogram file");
+		int width = header.getInt(), height = header.getInt(), depth = header.getInt();
+		Renderer.ColorMode colorMode = Renderer.ColorMode.values()[header.getInt()];
+		Layout layout = Layout.values()[header.getInt()];
+		long n = size(width, height, depth, layout);
+		if (channel.size() < HEADER + 32 * n) throw new IOException(file + " is truncated");
+		ByteBuffer[] counts = new ByteBuffer[buffers(n)], colors = new ByteBuffer[buffers(n)];
+		for (int j = 0; j < counts.length; j++) {
+			long first = (long) j << SHIFT;
+			int pixels = pixels(n, j);
+			counts[j] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + 8 * first, 8L * pixels)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			colors[j] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + 8 * n + 24 * first, 24L * pixels)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new OffHeapHistogram(width, height, depth, colorMode, layout,
+				channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN), counts, colors);
+	}
+
+	private static int buffers(long pixels) {
+		return (int) ((pixels + MASK) >>> SHIFT);
+	}
+
+	/**
+	 * @return number of pixels in buffer <code>j</code>
+	 */
+	private static int pixels(long n, int j) {
+		return (int) Math.min(1L << SHIFT, n - ((long) j << SHIFT));
+	}
+
+	/**
+	 * @param k metadata index, less than {@link #METADATA}
+	 * @return metadata stored with the histogram by its owner, 0 in a new file
+	 */
+	public long getMetadata(int k) {
+		return header.getLong(METADATA_OFFSET + 8 * k);
+	}
+
+	/**
+	 * Stores a long of metadata in the header, such as the state of the render the histogram holds
+	 * @param k metadata index, less than {@link #METADATA}
+	 */
+	public void setMetadata(int k, long value) {
+		header.putLong(METADATA_OFFSET + 8 * k, value);
+	}
+
+	/**
+	 * Writes the pages of a mapped histogram that changed back to its file; does nothing in direct buffers
+	 */
+	public void force() {
+		if (header instanceof MappedByteBuffer) ((MappedByteBuffer) header).force();
+		for (int j = 0; j < counts.length; j++) {
+			if (counts[j] instanceof MappedByteBuffer) {
+				((MappedByteBuffer) counts[j]).force();
+				((MappedByteBuffer) colors[j]).force();
+			}
+		}
+	}
+
+	@Override
+	public long count(int i) {
+		return counts[i >>> SHIFT].getLong((i & MASK) << 3);
+	}
+
+	@Override
+	public double value(int i, int c) {
+		return colors[i >>> SHIFT].getDouble((i & MASK) * 24 + 8 * c);
+	}
+
+	@Override
+	protected void set(int i, long n, double r, double g, double b) {
+		counts[i >>> SHIFT].putLong((i & MASK) << 3, n);
+		ByteBuffer buffer = colors[i >>> SHIFT];
+		int c = (i & MASK) * 24;
+		buffer.putDouble(c, r);
+		buffer.putDouble(c + 8, g);
+		buffer.putDouble(c + 16, b);
+	}
+
+	@Override
+	public void add(int i, double r, double g, double b) {
+		ByteBuffer count = counts[i >>> SHIFT];
+		int k = (i & MASK) << 3;
+		count.putLong(k, count.getLong(k) + 1);
+		ByteBuffer buffer = colors[i >>> SHIFT];
+		int c = (i & MASK) * 24;
+		if (sum) {
+			buffer.putDouble(c, buffer.getDouble(c) + r);
+			buffer.putDouble(c + 8, buffer.getDouble(c + 8) + g);
+			buffer.putDouble(c + 16, buffer.getDouble(c + 16) + b);
+		} else {
+			buffer.putDouble(c, (buffer.getDouble(c) + r)/2);
+			buffer.putDouble(c + 8, (buffer.getDouble(c + 8) + g)/2);
+			buffer.putDouble(c + 16, (buffer.getDouble(c + 16) + b)/2);
+		}
+	}
+
+	@Override
+	public void addAtomic(int i, long n, double r, double g, double b) {
+		LONGS.getAndAdd(counts[i >>> SHIFT], (i & MASK) << 3, n);
+		ByteBuffer buffer = colors[i >>> SHIFT];
+		int c = (i & MASK) * 24;
+		update(buffer, c, r);
+		update(buffer, c + 8, g);
+		update(buffer, c + 16, b);
+	}
+
+	/**
+	 * Atomically adds to or blends with a color component; buffers support no atomic addition of doubles
+	 */
+	private void update(ByteBuffer buffer, int c, double v) {
+		double old;
+		do {
+			old = (double) DOUBLES.getVolatile(buffer, c);
+		} while (!DOUBLES.compareAndSet(buffer, c, old, sum? old + v : (old + v)/2));
+	}
+
+	@Override
+	public void clear() {
+		for (int j = 0; j < counts.length; j++) {
+			for (int k = 0; k < counts[j].capacity(); k += 8) counts[j].putLong(k, 0);
+			for (int k = 0; k < colors[j].capacity(); k += 8) colors[j].putLong(k, 0);
+		}
+	}
+}
@@ -5,10 +5,11 @@ import static ifs.IFSDescriptor.Y;
 import static ifs.IFSDescriptor.R;
 import static ifs.IFSDescriptor.G;
 import static ifs.IFSDescriptor.B;
-import static ifs.IFSDescriptor.FREQ;
 
 import utils.GifSequenceWriter;
+import utils.PngWriter;
 import utils.math.geom.*;
+import utils.RandomStreams;
 import utils.Utils;
 
 import javax.imageio.ImageIO;
@@ -19,14 +20,33 @@ import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.random.RandomGenerator;
 
 /**
  * Provides methods for rendering an image from an ifs.IFSDescriptor
@@ -39,81 +59,833 @@ public class Renderer {
 	private IFSDescriptor descriptor;
 	private double pixelScale;
 	
-	Random rand;
+	/**
+	 * Generator for start points; functions are selected with the descriptor's streams
+	 */
+	RandomGenerator rand;
+	
+	/**
+	 * Number of walkers plotting in parallel
+	 */
+	private int threads = 1;
+	
+	private Accumulator accumulator = Accumulator.PRIVATE;
+	
+	/**
+	 * Iterations per chunk when plotting deterministically
+	 */
+	public static final int CHUNK = 1 << 20;
+	
+	private boolean deterministic;
+	
+	/**
+	 * File the histogram is mapped onto, or <code>null</code> to keep it on the heap
+	 */
+	private Path histogramFile;
+	
+	/**
+	 * Default time between checkpoints, in milliseconds
+	 */
+	public static final long CHECKPOINT_INTERVAL = 60_000;
+	
+	private Path checkpointFile;
+	private long checkpointInterval = CHECKPOINT_INTERVAL;
+	
+	/**
+	 * Metadata of checkpoints: seed of the chunks' start points, iteration the merged chunks end at (-1 while a chunk
+	 * is merged in place), first chunk and warm-up (in the high and low halves), and descriptor fingerprint
+	 */
+	private static final int SEED = 0, MERGED = 1, START = 2, FINGERPRINT = 3;
+	
+	/**
+	 * Slice of the chunks plotted, see {@link #setShard(int, int)}
+	 */
+	private int shard = 0, shards = 1;
+	
+	/**
+	 * Default smallest canvas, in pixels, whose points are binned before they are plotted. In
+	 * <code>Test.binningBenchmark</code> binning broke even between 400x400 and 500x500, where the histogram
+	 * (32 bytes per pixel) outgrows the caches, and plotted 4000x4000 about 40% faster.
+	 */
+	public static final int BINNING_THRESHOLD = 1 << 18;
+	
+	private int binningThreshold = BINNING_THRESHOLD;
+	
+	private Histogram.Layout layout = Histogram.Layout.ROW_MAJOR;
+	
+	/**
+	 * Hit counts whose logs are tabulated when tone mapping
+	 */
+	private static final int LOG_TABLE = 1 << 16;
+	/**
+	 * Pixels tone mapped at a time when drawing into a file
+	 */
+	private static final int STRIP = 1 << 22;
+	
+	/**
+	 * Suggested coverage below which plots are sparse, see {@link #setSparseCoverage(double)}. A sparse histogram
+	 * takes up to 72 bytes per pixel hit, a dense one 32 bytes per pixel of the canvas.
+	 */
+	public static final double SPARSE_COVERAGE = 0.1;
+	
+	/**
+	 * Iterations walked to measure an attractor's coverage
+	 */
+	public static final int PILOT = 1 << 16;
+	
+	private double sparseCoverage = SPARSE_COVERAGE;
+	
+	/**
+	 * Expected number of pixels hit when the current plot is sparse, 0 when it is dense
+	 */
+	private int pilot;
+	
+	/**
+	 * Ways for parallel walkers to accumulate their points
+	 */
+	public enum Accumulator {
+		/**
+		 * Each walker plots into its own histogram, merged at the end: fastest, but takes one histogram per thread
+		 */
+		PRIVATE,
+		/**
+		 * Walkers plot into one shared histogram with atomic updates
+		 */
+		ATOMIC,
+		/**
+		 * Like {@link #ATOMIC}, with repeated hits of a pixel combined in a small per-walker buffer first. Only color
+		 * sums are combined: blending a run of hits into the pixel at once would weigh its earlier color as a single
+		 * hit, so blended colors are written hit by hit as with {@link #ATOMIC}.
+		 */
+		BUFFERED
+	}
+	
+	/**
+	 * Receives snapshots of progressive renders
+	 * @see Renderer#addListener(Listener)
+	 */
+	public interface Listener {
+		/**
+		 * Called with the snapshots of a render on a thread of their own, and with the finished image on the thread
+		 * rendering; a listener taking long holds up the merging of chunks into the total until it returns
+		 * @param image tone-mapped snapshot, a new image each time
+		 * @param iterations number of iterations plotted so far
+		 */
+		void snapshot(BufferedImage image, int iterations);
+	}
+	
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * Default time between snapshots, in milliseconds
+	 */
+	public static final long SNAPSHOT_INTERVAL = 1000;
+	
+	private long snapshotInterval = SNAPSHOT_INTERVAL;
+	
+	/**
+	 * Default estimated error at which convergent renders stop, about two and a half levels per channel. Measured at
+	 * 400x400 and 1600x1600 on four-map affine, mixed affine, swirl and ex, and catalog systems, it stopped renders
+	 * after 11 to 63 chunks, most of them after 12 to 40; at 7e-3 several did not settle within 64 chunks.
+	 */
+	public static final double TOLERANCE = 1e-2;
+	
+	/**
+	 * Consecutive convergence checks within the tolerance needed to stop a render
+	 */
+	private static final int CONVERGED_CHECKS = 3;
+	
+	/**
+	 * Iterations plotted by the last plot, and the seed of its chunks' start points, 0 if it was not plotted in chunks
+	 */
+	private int plotted;
+	private long plotSeed;
+	
+	private ColorMode colorMode = ColorMode.BLEND;
+	
+	/**
+	 * Ways to accumulate the colors of the points hitting a pixel
+	 */
+	public enum ColorMode {
+		/**
+		 * Each hit blends the pixel's color halfway towards the point's, so recent hits dominate. The result depends
+		 * on the order of the hits: partial histograms can only be merged approximately.
+		 */
+		BLEND,
+		/**
+		 * Pixels store the sum of the colors of their hits and are drawn with the mean color. Partial histograms
+		 * add up to the histogram of all their hits, in any order.
+		 */
+		SUM
+	}
 	
 	public Renderer(IFSDescriptor descriptor, double pixelScale) {
-		this.descriptor = descriptor;
-		this.pixelScale = pixelScale;
-		rand = new Random();
+		this(descriptor, pixelScale, new RandomStreams().stream(0));
 	}
 	
-	public Renderer(IFSDescriptor descriptor, double pixelScale, Random rand) {
+	public Renderer(IFSDescriptor descriptor, double pixelScale, RandomGenerator rand) {
 		this.descriptor = descriptor;
 		this.pixelScale = pixelScale;
 		this.rand = rand;
 	}
 	
+	/**
+	 * Creates a renderer whose start points are reproducible. Together with a descriptor created with
+	 * {@link IFSDescriptor#IFSDescriptor(List, int)}, renders are reproduced bit for bit.
+	 * @param seed seed of the start point stream
+	 */
+	public Renderer(IFSDescriptor descriptor, double pixelScale, long seed) {
+		this(descriptor, pixelScale, new RandomStreams(seed).stream(0));
+	}
+	
+	/**
+	 * Selects how the descriptor's functions are evaluated for subsequent renders
+	 * @param backend evaluation strategy
+	 */
+	public void setBackend(IFSDescriptor.Backend backend) {
+		descriptor.setBackend(backend);
+	}
+	
+	/**
+	 * Plots and tone maps a render. While listeners are registered the render is progressive: it is plotted in
+	 * chunks as with {@link #setDeterministic(boolean)}, and every {@link #setSnapshotInterval(long) interval} the
+	 * chunks merged so far are tone mapped and sent to the listeners on a snapshot thread while the walkers carry on;
+	 * only merging the next chunk waits for the snapshot. The listeners get the finished image last.
+	 */
 	public BufferedImage render(int iterations, Vector3f bgColor) {
-		return drawHistogram(plot(iterations, 20), bgColor);
+		return renderUntil(iterations, 0, bgColor);
 	}
 	
 	public BufferedImage render(int iterations) {
 		return render(iterations, new Vector3f());
 	}
 	
-	public double[][][] plot(int iterations, int iterFloor) {
-		int w = getWidth(), h = getHeight();
-		double[][][] histogram = new double[w][h][4];
-		double[] p = new double[5];
+	/**
+	 * Renders until the image settles. The render is plotted in chunks as with {@link #setDeterministic(boolean)},
+	 * and the total is tone mapped after each chunk is merged. The mean change of the color channels of the pixels
+	 * hit, times the square root of the number of chunks, estimates the error left in the image: a chunk's share of
+	 * the total shrinks as the total grows, while its sampling noise does not. The render stops once the estimate
+	 * falls below <code>tolerance</code> {@value #CONVERGED_CHECKS} times in a row, or after
+	 * <code>maxIterations</code>. Where it stops only depends on the chunks, so a seeded render stops at the same
+	 * point on any number of threads. {@link #getIterations()} then gives the iterations used.
+	 * @param tolerance estimated error of a color channel, as a fraction of full scale
+	 * @param maxIterations largest number of iterations to plot
+	 */
+	public BufferedImage render(double tolerance, int maxIterations, Vector3f bgColor) {
+		return renderUntil(maxIterations, tolerance, bgColor);
+	}
+	
+	public BufferedImage render(double tolerance, int maxIterations) {
+		return render(tolerance, maxIterations, new Vector3f());
+	}
+	
+	/**
+	 * Renders until the image settles within {@link #TOLERANCE}
+	 */
+	public BufferedImage renderConverged(int maxIterations) {
+		return render(TOLERANCE, maxIterations);
+	}
+	
+	/**
+	 * @param tolerance estimated error at which to stop, 0 to plot all the iterations
+	 */
+	private BufferedImage renderUntil(int iterations, double tolerance, Vector3f bgColor) {
+		BufferedImage img = drawHistogram(plot(iterations, 20, bgColor, tolerance), bgColor);
+		for (Listener l : listeners) l.snapshot(img, plotted);
+		return img;
+	}
+	
+	/**
+	 * @return number of iterations plotted by the last plot or render
+	 */
+	public int getIterations() {
+		return plotted;
+	}
+	
+	/**
+	 * Sets the number of walkers plotting in parallel. With more than one, each walker iterates its share of the
+	 * points from its own start point and selection stream, accumulating them as set by
+	 * {@link #setAccumulator(Accumulator)}.
+	 * @param threads number of walkers, 1 to plot on the calling thread
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("threads must be positive: " + threads);
+		this.threads = threads;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Makes renders independent of the number of threads. The iterations are divided into chunks of
+	 * {@link #CHUNK} iterations; chunk <code>c</code> starts from a point drawn from its own stream and selects
+	 * functions with the descriptor's stream <code>c + 1</code>. Chunks are handed out to the walkers as they become
+	 * free, each is plotted into a histogram of its own, and the chunk histograms are added to the result in chunk
+	 * order. With a seeded renderer and descriptor, the histogram is then identical bit for bit on any number of
+	 * threads, in either color mode. Each chunk discards its own warm-up points.
+	 * @param deterministic whether to plot in chunks
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+	
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+	
+	/**
+	 * Splits renders into shards, to plot on several machines and merge with {@link HistogramFile}: plots are made in
+	 * chunks as with {@link #setDeterministic(boolean)}, and only the chunks of the given shard are plotted. With the
+	 * same seeds, the shards of a render add up to the whole render (exactly for hit counts and color sums, up to
+	 * rounding for blended colors).
+	 * @param shard index of the shard to plot, from 0
+	 * @param shards number of shards, 1 to plot everything
+	 */
+	public void setShard(int shard, int shards) {
+		if (shard < 0 || shard >= shards) throw new IllegalArgumentException("no shard " + shard + " of " + shards);
+		this.shard = shard;
+		this.shards = shards;
+	}
+	
+	/**
+	 * Saves a histogram of this renderer as a shard file, along with the descriptor's fingerprint, the canvas, the
+	 * seed and number of iterations of the last plot, and the {@link #setShard(int, int) shard} it holds
+	 * @param compress whether to deflate the tiles
+	 * @see HistogramFile
+	 */
+	public void saveHistogram(Path file, Histogram histogram, boolean compress) throws IOException {
+		new HistogramFile(histogram.getWidth(), histogram.getHeight(), histogram.getColorMode(),
+				descriptor.fingerprint(), descriptor.xmin, descriptor.xmax, descriptor.ymin, descriptor.ymax,
+				pixelScale, plotSeed, shard, shards, plotted).write(file, histogram, compress);
+	}
+	
+	/**
+	 * Plots into a histogram mapped onto a file rather than on the heap, for canvases too large for the heap. Hits
+	 * are added to those already in the file, so a render can be continued or drawn after a restart. Walkers
+	 * plotting in parallel share the mapped histogram: {@link Accumulator#PRIVATE} then accumulates as
+	 * {@link Accumulator#BUFFERED}.
+	 * @param histogramFile file holding the histogram, created if needed; <code>null</code> to plot on the heap
+	 * @see OffHeapHistogram#map(Path, int, int, int, ColorMode, Histogram.Layout)
+	 */
+	public void setHistogramFile(Path histogramFile) {
+		this.histogramFile = histogramFile;
+	}
+	
+	public Path getHistogramFile() {
+		return histogramFile;
+	}
+	
+	/**
+	 * Checkpoints subsequent plots so that they can be resumed after a crash. Plots are then made in chunks as with
+	 * {@link #setDeterministic(boolean)}, and every {@link #setCheckpointInterval(long) interval} the chunks merged so
+	 * far are written to the file, along with the seed of the chunks' start points, the number of chunks and the
+	 * warm-up. Chunks start from points of their own streams, so the chunk number stands for the orbit point and
+	 * the generators' state. A plot finding a checkpoint of the same descriptor (and seed) and canvas in the file
+	 * resumes after its last chunk, giving the same histogram as an uninterrupted plot; it may ask for more
+	 * iterations than the interrupted one. Checkpoints are written to a temporary file, mapped, and moved over the
+	 * previous one, and only hold whole chunks. The last one is kept when the plot completes.
+	 * <p>
+	 * Plots into a {@link #setHistogramFile(Path) histogram file} keep their checkpoint in that file rather than
+	 * copying it: its header records the chunks merged after every merge, and every interval the file is only forced
+	 * to disk. The checkpoint file is then not written. Such checkpoints survive the process being killed, unless it
+	 * is killed in the middle of a merge; a system crash may lose what was merged since the file was last forced.
+	 * They hold a partial last chunk once the plot completes, and can then only be resumed with the same number of
+	 * iterations.
+	 * @param checkpointFile checkpoint to resume from and write to, <code>null</code> for none
+	 */
+	public void setCheckpointFile(Path checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+	
+	public Path getCheckpointFile() {
+		return checkpointFile;
+	}
+	
+	/**
+	 * @param checkpointInterval time between checkpoints, in milliseconds
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+	
+	/**
+	 * Sets the canvas size from which points are binned by block before they are plotted, see {@link BinningSink}.
+	 * Binning pays off once the histogram is much larger than the processor's caches.
+	 * @param pixels smallest canvas to bin points on: 0 to always bin, {@link Integer#MAX_VALUE} to never bin
+	 */
+	public void setBinningThreshold(int pixels) {
+		this.binningThreshold = pixels;
+	}
+	
+	public int getBinningThreshold() {
+		return binningThreshold;
+	}
+	
+	/**
+	 * Sets the order in which histograms store their pixels. {@link Histogram.Layout#MORTON} keeps nearby points of
+	 * the attractor in the same cache lines and pages; images are the same in either layout.
+	 * @param layout storage order of subsequent histograms
+	 */
+	public void setLayout(Histogram.Layout layout) {
+		this.layout = layout;
+	}
+	
+	public Histogram.Layout getLayout() {
+		return layout;
+	}
+	
+	/**
+	 * Sets the coverage below which plots accumulate into {@link SparseHistogram}s, for canvases whose dense
+	 * histograms would not fit in the heap. Before each plot on the heap, a pilot walk of {@value #PILOT} iterations
+	 * counts the pixels it hits, from which the coverage of the whole plot is extrapolated; thin attractors under the
+	 * threshold are then plotted sparsely. The pilot costs the same however many iterations are plotted, and it
+	 * selects with its own generator, so renders are the same either way.
+	 * @param sparseCoverage fraction of the canvas, {@link #SPARSE_COVERAGE} by default; 0 to always plot densely
+	 */
+	public void setSparseCoverage(double sparseCoverage) {
+		this.sparseCoverage = sparseCoverage;
+	}
+	
+	public double getSparseCoverage() {
+		return sparseCoverage;
+	}
+	
+	/**
+	 * Registers a listener for snapshots of subsequent renders, making them progressive
+	 * @see #render(int, Vector3f)
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Sets the time between snapshots of progressive renders. Snapshots are taken as chunks are merged, so they come
+	 * no more often than one per chunk.
+	 * @param snapshotInterval time in milliseconds
+	 */
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+	
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+	
+	public Histogram plot(int iterations, int iterFloor) {
+		return plot(iterations, iterFloor, null, 0);
+	}
+	
+	/**
+	 * @param bgColor background of snapshots and convergence checks, <code>null</code> for neither
+	 * @param tolerance estimated error at which to stop, 0 to plot all the iterations
+	 */
+	private Histogram plot(int iterations, int iterFloor, Vector3f bgColor, double tolerance) {
+		if (listeners.isEmpty() && tolerance <= 0) bgColor = null;
+		plotted = iterations;
+		plotSeed = 0;
+		pilot = 0;
+		if (histogramFile == null && sparseCoverage > 0) {
+			long canvas = Histogram.size(getWidth(), getHeight(), 1, layout);
+			double coverage = pilot(iterations, iterFloor);
+			if (coverage < sparseCoverage) pilot = (int) Math.max(1, coverage * canvas);
+		}
+		Histogram histogram;
+		if (deterministic || bgColor != null || checkpointFile != null || shards > 1)
+			histogram = plotChunks(iterations, iterFloor, bgColor, tolerance);
+		else if (threads > 1) histogram = plotParallel(iterations, iterFloor);
+		else {
+			histogram = outputHistogram();
+			walk(sink(histogram), startPoint(rand), 0, iterations, iterFloor, descriptor.rand);
+		}
+		if (histogram instanceof OffHeapHistogram) ((OffHeapHistogram) histogram).force();
+		return histogram;
+	}
+	
+	/**
+	 * Sets how parallel walkers accumulate their points. Sparse plots, see {@link #setSparseCoverage(double)},
+	 * always accumulate privately: walkers sharing one hash table would take turns updating it.
+	 * @param accumulator accumulation backend, used when plotting with more than one thread
+	 */
+	public void setAccumulator(Accumulator accumulator) {
+		this.accumulator = accumulator;
+	}
+	
+	public Accumulator getAccumulator() {
+		return accumulator;
+	}
+	
+	/**
+	 * Sets how the colors of a pixel's hits are accumulated in subsequent plots
+	 * @param colorMode accumulation of colors
+	 */
+	public void setColorMode(ColorMode colorMode) {
+		this.colorMode = colorMode;
+	}
+	
+	public ColorMode getColorMode() {
+		return colorMode;
+	}
+	
+	/**
+	 * Plots with {@link #threads} walkers on a fork/join pool. Walker <code>k</code> starts from a point drawn from
+	 * its own stream and selects functions with the descriptor's stream <code>k + 1</code>; each one discards its
+	 * first <code>iterFloor</code> points. Color sums add up exactly; blended colors of a pixel hit by several
+	 * walkers are averaged, weighted by hits, with private histograms, and blended in whatever order the updates land
+	 * with a shared histogram.
+	 */
+	private Histogram plotParallel(int iterations, int iterFloor) {
+		RandomStreams starts = new RandomStreams(rand.nextLong());
+		Accumulator accumulator = (histogramFile != null && this.accumulator == Accumulator.PRIVATE)?
+				Accumulator.BUFFERED : (pilot > 0)? Accumulator.PRIVATE : this.accumulator;
+		Histogram shared = (accumulator == Accumulator.PRIVATE)? null : outputHistogram();
+		Histogram[] histograms = new Histogram[threads];
+		List<Callable<Void>> walkers = new ArrayList<>();
+		for (int k = 0; k < threads; k++) {
+			int walker = k;
+			int first = (int) ((long) iterations * k / threads);
+			int last = (int) ((long) iterations * (k + 1) / threads);
+			walkers.add(() -> {
+				Sink sink;
+				switch (accumulator) {
+					case BUFFERED:
+						if (shared.getColorMode() == ColorMode.SUM) {
+							sink = new CombiningSink(shared);
+							break;
+						}
+						// blended hits are written one by one
+					case ATOMIC:
+						sink = (x, y, p) -> shared.addAtomic(shared.index(x, y), 1, p[R], p[G], p[B]);
+						break;
+					default:
+						sink = sink(histograms[walker] = newHistogram());
+				}
+				walk(sink, startPoint(starts.stream(walker)), first, last - first, iterFloor,
+						descriptor.stream(walker + 1));
+				return null;
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (Future<Void> f : pool.invokeAll(walkers)) f.get();
+			// merge pixel ranges of private histograms in parallel, adding the walkers in order; a sparse histogram
+			// is one hash table, so it takes the others on one thread
+			List<Callable<Void>> merges = new ArrayList<>();
+			long n = Histogram.size(getWidth(), getHeight(), 1, layout);
+			int parts = (histograms[0] instanceof SparseHistogram)? 1 : threads;
+			for (int k = 0; shared == null && k < parts; k++) {
+				int start = (int) (n * k / parts);
+				int end = (int) (n * (k + 1) / parts);
+				merges.add(() -> {
+					for (int i = 1; i < histograms.length; i++) histograms[0].merge(histograms[i], start, end);
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(merges)) f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("parallel plot failed", e);
+		} finally {
+			pool.shutdown();
+		}
+		return (shared != null)? shared : histograms[0];
+	}
+	
+	/**
+	 * Plots in chunks of {@link #CHUNK} iterations, see {@link #setDeterministic(boolean)}
+	 * @param bgColor background of snapshots and convergence checks, <code>null</code> for neither
+	 * @param tolerance estimated error at which to stop, 0 to plot all the chunks
+	 */
+	private Histogram plotChunks(int iterations, int iterFloor, Vector3f bgColor, double tolerance) {
+		long seed = rand.nextLong();
+		int chunks = (int) (((long) iterations + CHUNK - 1) / CHUNK);
+		ChunkMerger merger = new ChunkMerger(chunks, (int) ((long) chunks * shard / shards),
+				(int) ((long) chunks * (shard + 1) / shards), iterations, iterFloor, seed, bgColor, tolerance);
+		RandomStreams starts = new RandomStreams(merger.seed);
+		AtomicInteger next = new AtomicInteger(merger.merged);
+		List<Callable<Void>> walkers = new ArrayList<>();
+		for (int k = 0; k < threads; k++) {
+			walkers.add(() -> {
+				try {
+					for (int c; (c = next.getAndIncrement()) < merger.limit; ) {
+						if (!merger.admit(c)) break;
+						Histogram histogram = merger.buffer();
+						int first = c * CHUNK;
+						walk(sink(histogram), startPoint(starts.stream(c)), first,
+								Math.min(CHUNK, iterations - first), iterFloor, descriptor.stream(c + 1));
+						merger.complete(c, histogram);
+					}
+				} catch (Throwable e) {
+					merger.abort();
+					throw e;
+				}
+				return null;
+			});
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (Future<Void> f : pool.invokeAll(walkers)) f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("parallel plot failed", e);
+		} finally {
+			pool.shutdown();
+			merger.finish();
+		}
+		plotted = (int) (Math.min((long) merger.limit * CHUNK, iterations) - (long) merger.first * CHUNK);
+		plotSeed = merger.seed;
+		return merger.total;
+	}
+	
+	/**
+	 * @return a new iteration state at a random point of the descriptor's bounds
+	 */
+	private double[] startPoint(RandomGenerator rand) {
+		double[] p = descriptor.newState();
 		p[X] = descriptor.xmin + rand.nextDouble() * (descriptor.xmax - descriptor.xmin);
 		p[Y] = descriptor.ymin + rand.nextDouble() * (descriptor.ymax - descriptor.ymin);
+		return p;
+	}
+	
+	/**
+	 * Iterates the chaos game from <code>p</code>, plotting all but the first <code>iterFloor</code> points, and
+	 * flushes the sink
+	 * @param first index of the first iteration, as seen by the functions
+	 * @param select generator used to select functions
+	 */
+	private void walk(Sink sink, double[] p, int first, int iterations, int iterFloor, RandomGenerator select) {
+		int w = getWidth(), h = getHeight();
 		for (int i = 0; i < iterations; i++) {
-			try {
-				p = descriptor.runFunc(p, i);
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-			if (i % 1_000_000 == 0) System.out.println(i);
+			descriptor.iterate(p, first + i, select);
 			if (i > iterFloor) {
-				Vector2i pos = scalePoint(p);
-				if (pos.x < w && pos.x >= 0 && pos.y < h && pos.y >= 0) {
-					histogram[pos.x][pos.y][FREQ]++;
-					histogram[pos.x][pos.y][R] = (histogram[pos.x][pos.y][R] + p[R])/2;
-					histogram[pos.x][pos.y][G] = (histogram[pos.x][pos.y][G] + p[G])/2;
-					histogram[pos.x][pos.y][B] = (histogram[pos.x][pos.y][B] + p[B])/2;
-				}
+				int x = (int) ((p[X] - descriptor.xmin) * pixelScale);
+				int y = (int) ((p[Y] - descriptor.ymin) * pixelScale);
+				if (x < w && x >= 0 && y < h && y >= 0) sink.plot(x, y, p);
 			}
 		}
-		return histogram;
+		sink.flush();
 	}
 	
-	public BufferedImage drawHistogram(double[][][] histogram, Vector3f bgColor) {
-		int w = getWidth();
-		int h = getHeight();
-		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);;
+	/**
+	 * @return an empty histogram of the canvas, in the current color mode
+	 */
+	private Histogram newHistogram() {
+		if (pilot > 0) return new SparseHistogram(getWidth(), getHeight(), 1, colorMode, layout, pilot);
+		return new ArrayHistogram(getWidth(), getHeight(), 1, colorMode, layout);
+	}
+	
+	/**
+	 * A chunk hits at most {@link #CHUNK} pixels, so its histogram is sparse when the total is mapped onto a file or
+	 * a chunk can hit no more than a quarter of the canvas: walkers then take a table of the pixels they hit rather
+	 * than a dense canvas each on the heap.
+	 * @return an empty histogram to plot a chunk into
+	 */
+	private Histogram chunkHistogram() {
+		long n = Histogram.size(getWidth(), getHeight(), 1, layout);
+		if (pilot > 0 || (histogramFile == null && n < 4L * CHUNK)) return newHistogram();
+		return new SparseHistogram(getWidth(), getHeight(), 1, colorMode, layout, (int) Math.min(CHUNK, n / 4));
+	}
+	
+	/**
+	 * Walks {@value #PILOT} iterations, at most all of them and a quarter of the canvas, with a copy of the
+	 * descriptor's stream 0, and extrapolates the coverage of the whole plot. The pixels hit grow like a power of the
+	 * points plotted, at a rate that falls as the attractor fills in: the rate over the second half of the pilot, kept
+	 * for all the iterations, overestimates the coverage rather than missing dense attractors. Pixels hit are kept in
+	 * a {@link SparseHistogram} of the pilot's size, not in anything the size of the canvas.
+	 * @return estimated fraction of the canvas hit, or 1 if there are too few iterations to tell
+	 */
+	private double pilot(int iterations, int iterFloor) {
+		Histogram hit = new SparseHistogram(getWidth(), getHeight(), 1, ColorMode.SUM, layout, PILOT);
+		long canvas = hit.size();
+		int n = (int) Math.min(Math.min(iterations, PILOT), canvas / 4);
+		if (n < 1000) return 1;
+		int[] hits = new int[3]; // points, pixels hit, pixels hit by the first n / 2 points
+		RandomGenerator g = descriptor.stream(0);
+		walk((x, y, p) -> {
+			int i = hit.index(x, y);
+			if (hit.count(i) == 0) hits[1]++;
+			hit.add(i, 0, 0, 0);
+			if (++hits[0] == n / 2) hits[2] = hits[1];
+		}, startPoint(g), 0, n + iterFloor, iterFloor, g);
+		if (hits[0] < n / 2 + 1) return 1;
+		double rate = Math.log((double) hits[1] / hits[2]) / Math.log((double) hits[0] / (n / 2));
+		return Math.min(1, hits[1] * Math.pow((double) iterations / n, rate) / canvas);
+	}
+	
+	/**
+	 * @return the histogram to plot into: mapped onto the histogram file if one is set, otherwise a new one
+	 */
+	private Histogram outputHistogram() {
+		if (histogramFile == null) return newHistogram();
+		try {
+			return OffHeapHistogram.map(histogramFile, getWidth(), getHeight(), 1, colorMode, layout);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * @return a sink plotting into a histogram owned by the walker, binning points on canvases of at least
+	 * {@link #binningThreshold} pixels
+	 */
+	private Sink sink(Histogram histogram) {
+		if (histogram.size() >= binningThreshold) return new BinningSink(histogram);
+		return (x, y, p) -> histogram.add(histogram.index(x, y), p[R], p[G], p[B]);
+	}
+	
+	/**
+	 * Tone maps a histogram: each pixel is its color faded into the background by the log of its hit count over the
+	 * log of the highest count. The highest count and the rows are computed in parallel, on {@link #threads} threads,
+	 * and pixels are packed straight into the image's raster.
+	 */
+	public BufferedImage drawHistogram(Histogram histogram, Vector3f bgColor) {
+		int w = histogram.getWidth();
+		int h = histogram.getHeight();
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		new Exposure(histogram, bgColor).draw(pixels, 0, h);
+		return img;
+	}
+	
+	/**
+	 * Tone maps a histogram as {@link #drawHistogram(Histogram, Vector3f)} does, straight into a PNG file, a strip of
+	 * {@value #STRIP} pixels at a time: canvases too large for an image on the heap can be drawn this way.
+	 * @throws IOException if the file cannot be written
+	 */
+	public void drawHistogram(Histogram histogram, Vector3f bgColor, Path png) throws IOException {
+		int w = histogram.getWidth();
+		int h = histogram.getHeight();
+		Exposure exposure = new Exposure(histogram, bgColor);
+		int strip = Math.max(1, Math.min(h, STRIP / w));
+		int[] pixels = new int[strip * w];
+		try (PngWriter out = new PngWriter(new BufferedOutputStream(Files.newOutputStream(png)), w, h)) {
+			for (int top = 0; top < h; top += strip) {
+				int rows = Math.min(strip, h - top);
+				exposure.draw(pixels, top, top + rows);
+				out.write(pixels, 0, rows);
+			}
+		}
+	}
+	
+	/**
+	 * Brightness of a histogram's pixels: the log of each hit count over the log of the highest count
+	 */
+	private class Exposure {
+		final Histogram histogram;
+		final Vector3f bgColor;
+		final int background;
+		final double logMaxFreq;
+		/**
+		 * Brightness of low counts
+		 */
+		final double[] alphas;
 		
-		// find max frequency
-		double maxFreq = 0;
-		for (int i = 0; i < w; i++) {
-			for (int j = 0; j < h; j++) {
-				if (histogram[i][j][FREQ] > maxFreq) maxFreq = histogram[i][j][FREQ];
+		/**
+		 * Finds the highest count, in parallel
+		 */
+		Exposure(Histogram histogram, Vector3f bgColor) {
+			this.histogram = histogram;
+			this.bgColor = bgColor;
+			int bands = Math.min(threads, Math.max(1, histogram.getHeight()));
+			long[] maxes = new long[bands];
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int k = 0; k < bands; k++) {
+				int band = k, n = histogram.size();
+				tasks.add(() -> {
+					maxes[band] = histogram.maxCount((int) ((long) n * band / bands),
+							(int) ((long) n * (band + 1) / bands));
+					return null;
+				});
 			}
+			invokeAll(tasks);
+			long maxFreq = Arrays.stream(maxes).max().getAsLong();
+			logMaxFreq = Math.log(maxFreq);
+			alphas = new double[(int) Math.min(maxFreq + 1, LOG_TABLE)];
+			for (int n = 1; n < alphas.length; n++) alphas[n] = Math.log(n) / logMaxFreq;
+			background = pack(bgColor.x, bgColor.y, bgColor.z);
 		}
-		double logMaxFreq = Math.log(maxFreq);
 		
-		// attenuate and build image
-		for (int i = 0; i < w; i++) {
-			for (int j = 0; j < h; j++) {
-				// calculate brightness
-				double alpha = (histogram[i][j][FREQ] == 0)? 0 : Math.log(histogram[i][j][FREQ]) / logMaxFreq;
-				float r = (float) (bgColor.x - (bgColor.x - histogram[i][j][R]) * alpha);
-				float g = (float) (bgColor.y - (bgColor.y - histogram[i][j][G]) * alpha);
-				float b = (float) (bgColor.z - (bgColor.z - histogram[i][j][B]) * alpha);
-				img.setRGB(i, h - 1 - j, new Color(r, g, b).getRGB());
+		/**
+		 * Tone maps image rows <code>top</code> (inclusive) to <code>bottom</code> (exclusive), top row first, into
+		 * <code>pixels</code> from index 0. Rows are split among {@link #threads} threads.
+		 */
+		void draw(int[] pixels, int top, int bottom) {
+			int w = histogram.getWidth();
+			int h = histogram.getHeight();
+			int bands = Math.min(threads, Math.max(1, bottom - top));
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int k = 0; k < bands; k++) {
+				int first = top + (int) ((long) (bottom - top) * k / bands);
+				int last = top + (int) ((long) (bottom - top) * (k + 1) / bands);
+				tasks.add(() -> {
+					for (int r = first; r < last; r++) {
+						int row = (r - top) * w, j = h - 1 - r;
+						for (int i = 0; i < w; i++) {
+							int p = histogram.index(i, j);
+							// calculate brightness
+							long freq = histogram.count(p);
+							if (freq == 0) {
+								pixels[row + i] = background;
+								continue;
+							}
+							double alpha = (freq < alphas.length)? alphas[(int) freq] : Math.log(freq) / logMaxFreq;
+							pixels[row + i] = toneMap(bgColor, alpha, histogram.color(p, R), histogram.color(p, G),
+									histogram.color(p, B));
+						}
+					}
+					return null;
+				});
 			}
+			invokeAll(tasks);
+		}
+	}
+	
+	/**
+	 * @param alpha log of the pixel's hit count over the log of the highest count
+	 * @return an RGB pixel of a color faded into the background
+	 */
+	static int toneMap(Vector3f bgColor, double alpha, double r, double g, double b) {
+		return pack(bgColor.x - (bgColor.x - r) * alpha, bgColor.y - (bgColor.y - g) * alpha,
+				bgColor.z - (bgColor.z - b) * alpha);
+	}
+	
+	/**
+	 * @return an RGB pixel of color components in <code>[0, 1]</code>, rounded as {@link Color} rounds them
+	 */
+	static int pack(double r, double g, double b) {
+		return 0xff000000 | channel(r) << 16 | channel(g) << 8 | channel(b);
+	}
+	
+	private static int channel(double c) {
+		return Math.min(255, Math.max(0, (int) ((float) c * 255 + 0.5)));
+	}
+	
+	/**
+	 * Runs tasks on {@link #threads} threads, or on this thread if there is only one
+	 */
+	private void invokeAll(List<Callable<Void>> tasks) {
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw new RuntimeException("task failed", e);
+			}
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("parallel task failed", e);
+		} finally {
+			pool.shutdown();
 		}
-		return img;
 	}
 	
 	public int getWidth() {
@@ -124,12 +896,6 @@ public class Renderer {
 		return (int) (pixelScale * (descriptor.ymax - descriptor.ymin));
 	}
 	
-	private Vector2i scalePoint(double[] p) {
-		int x = (int) ((p[X] - descriptor.xmin) * pixelScale);
-		int y = (int) ((p[Y] - descriptor.ymin) * pixelScale);
-		return new Vector2i(x, y);
-	}
-	
 	public void save(String fileName, BufferedImage img) {
 		try {
 			ImageIO.write(img, "PNG", new File(fileName));
@@ -154,7 +920,7 @@ public class Renderer {
 				// lerp
 				double val = range[0] + iter * (range[1] - range[0]) / frames;
 				System.out.println("val = " + val);
-				descriptor.globals.put(s, val);
+				descriptor.setGlobal(s, val);
 			});
 			imgs[i] = render(iterations);
 		}
@@ -170,16 +936,46 @@ public class Renderer {
 	}
 	
 	void display(BufferedImage img) {
+		display(new AtomicReference<>(img));
+	}
+	
+	/**
+	 * Renders in a window showing the image as it refines, see {@link #render(int, Vector3f)}
+	 */
+	void display(int iterations) {
+		AtomicReference<BufferedImage> shown =
+				new AtomicReference<>(new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB));
+		JFrame f = display(shown);
+		Listener listener = (img, n) -> {
+			shown.set(img);
+			// snapshots come from the render's threads, the frame belongs to the event dispatch thread
+			SwingUtilities.invokeLater(() -> {
+				f.setTitle("IFS: " + descriptor.name + " (" + n + " iterations)");
+				f.repaint();
+			});
+		};
+		addListener(listener);
+		try {
+			render(iterations);
+		} finally {
+			removeListener(listener);
+		}
+	}
+	
+	/**
+	 * Opens a window showing an image that may be replaced
+	 */
+	private JFrame display(AtomicReference<BufferedImage> img) {
 		JFrame f = new JFrame("IFS: " + descriptor.name) {
 			public void paint(Graphics g) {
-				g.drawImage(img, 0, 0, null);
+				g.drawImage(img.get(), 0, 0, null);
 			}
 		};
 		f.addKeyListener(new KeyAdapter() {
 			@Override
 			public void keyTyped(KeyEvent e) {
 				if (e.getKeyChar() == 's')
-					saveDefault(img);
+					saveDefault(img.get());
 			}
 		});
 		int w = (int) ((descriptor.xmax - descriptor.xmin) * pixelScale);
@@ -188,6 +984,415 @@ public class Renderer {
 		f.setLocationRelativeTo(null);
 		f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		f.setVisible(true);
+		return f;
+	}
+	
+	/**
+	 * Adds chunk histograms to the total in chunk order, whichever order the chunks complete in. Chunk histograms
+	 * come from {@link #chunkHistogram()}, the total from {@link #outputHistogram()}. The walker completing the next
+	 * chunk due merges it, along with any later chunks already waiting, while the other walkers
+	 * keep plotting; merged histograms are cleared and handed out again. When a convergence check is due, the merging
+	 * walker tone maps the total after its merge, and it writes checkpoints. Snapshots are tone mapped on a thread of
+	 * their own, which the next merge waits for. Once the render has converged, chunks past the last one merged are
+	 * dropped. Walkers wait before plotting a chunk more than {@link #window} chunks past the last one merged, so a
+	 * lagging chunk holds back a bounded number of histograms.
+	 */
+	private class ChunkMerger {
+		final Histogram total = outputHistogram();
+		private final Histogram[] completed;
+		private final Deque<Histogram> free = new ArrayDeque<>();
+		/**
+		 * First chunk of the shard, and number of chunks merged: the first chunk or, when resuming, the chunks of the
+		 * checkpoint
+		 */
+		final int first;
+		int merged;
+		private boolean merging;
+		private final int iterations, iterFloor;
+		/**
+		 * Seed of the chunks' start points, taken from the checkpoint when resuming
+		 */
+		long seed;
+		private final Vector3f bgColor;
+		private final double tolerance;
+		private long snapshot = System.nanoTime(), checkpoint = System.nanoTime();
+		/**
+		 * Thread tone mapping snapshots, and the snapshot in progress
+		 */
+		private final ExecutorService snapshots;
+		private Future<?> snapshotting;
+		/**
+		 * Pixels of the last convergence check, and number of checks passed in a row
+		 */
+		private int[] previous;
+		private int passed;
+		/**
+		 * Number of chunks to plot, lowered when the render converges
+		 */
+		volatile int limit;
+		/**
+		 * Whether the checkpoint is the histogram file the total is mapped onto
+		 */
+		private final boolean inPlace = checkpointFile != null && histogramFile != null;
+		/**
+		 * Number of chunks that may be plotted or waiting past the last one merged
+		 */
+		private final int window = 2 * threads;
+		private boolean failed;
+		
+		/**
+		 * @param chunks number of chunks of the whole render
+		 * @param first first chunk to plot
+		 * @param end chunk after the last one to plot
+		 * @param bgColor background of snapshots and convergence checks, <code>null</code> for neither
+		 * @param tolerance estimated error at which to stop, 0 to merge all the chunks
+		 */
+		ChunkMerger(int chunks, int first, int end, int iterations, int iterFloor, long seed, Vector3f bgColor,
+				double tolerance) {
+			completed = new Histogram[chunks];
+			this.first = first;
+			merged = first;
+			this.iterations = iterations;
+			this.iterFloor = iterFloor;
+			this.seed = seed;
+			this.bgColor = bgColor;
+			this.tolerance = tolerance;
+			limit = end;
+			snapshots = (bgColor == null || listeners.isEmpty())? null : Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "snapshots");
+				t.setDaemon(true);
+				return t;
+			});
+			try {
+				if (inPlace) {
+					OffHeapHistogram saved = (OffHeapHistogram) total;
+					if (saved.getMetadata(FINGERPRINT) != 0 || saved.getMetadata(MERGED) != 0) resume();
+				} else if (checkpointFile != null && Files.exists(checkpointFile)) resume();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * Restores the total, the seed and the number of chunks merged from the checkpoint, or only the seed and the
+		 * number of chunks when the total is the checkpoint
+		 * @throws IOException if the file cannot be read, holds a checkpoint of another render, or one that cannot be
+		 * resumed
+		 */
+		private void resume() throws IOException {
+			Path file = inPlace? histogramFile : checkpointFile;
+			OffHeapHistogram saved = inPlace? (OffHeapHistogram) total : OffHeapHistogram.open(checkpointFile);
+			if (saved.getWidth() != total.getWidth() || saved.getHeight() != total.getHeight() ||
+					saved.getColorMode() != colorMode || saved.getLayout() != total.getLayout() ||
+					saved.getMetadata(FINGERPRINT) != descriptor.fingerprint() ||
+					saved.getMetadata(START) != ((long) first << 32 | iterFloor))
+				throw new IOException(file + " is a checkpoint of another render");
+			long end = saved.getMetadata(MERGED);
+			if (end < 0) throw new IOException(file + " was interrupted while merging a chunk");
+			if (end > iterations) throw new IOException(file + " holds " + end + " iterations, more than " + iterations);
+			if (end % CHUNK != 0 && end != iterations)
+				throw new IOException(file + " ends with a partial chunk, it only resumes to " + end + " iterations");
+			int chunks = (int) ((end + CHUNK - 1) / CHUNK);
+			if (chunks > limit)
+				throw new IOException(file + " holds " + end + " iterations, more than the shard's " +
+						(long) limit * CHUNK);
+			seed = saved.getMetadata(SEED);
+			merged = chunks;
+			if (!inPlace) {
+				total.clear();
+				total.copy(saved);
+			}
+			if (tolerance > 0 && chunks > first) converged(drawHistogram(total, bgColor), chunks);
+		}
+		
+		/**
+		 * Writes the total, as of <code>chunks</code> chunks, to the checkpoint file, or only forces it to disk when
+		 * it is the checkpoint
+		 */
+		private void checkpoint(int chunks) {
+			if (inPlace) {
+				OffHeapHistogram saved = (OffHeapHistogram) total;
+				record(saved, chunks);
+				saved.force();
+				checkpoint = System.nanoTime();
+				return;
+			}
+			Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+			try {
+				Files.deleteIfExists(tmp);
+				OffHeapHistogram saved = OffHeapHistogram.map(tmp, total.getWidth(), total.getHeight(), 1, colorMode,
+						total.getLayout());
+				saved.copy(total);
+				record(saved, chunks);
+				saved.force();
+				Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			checkpoint = System.nanoTime();
+		}
+		
+		/**
+		 * Stores the state of the render as of <code>chunks</code> chunks in the metadata of a checkpoint
+		 */
+		private void record(OffHeapHistogram saved, int chunks) {
+			saved.setMetadata(SEED, seed);
+			saved.setMetadata(MERGED, Math.min((long) chunks * CHUNK, iterations));
+			saved.setMetadata(START, (long) first << 32 | iterFloor);
+			saved.setMetadata(FINGERPRINT, descriptor.fingerprint());
+		}
+		
+		/**
+		 * Waits until chunk <code>c</code> is within {@link #window} chunks of the last one merged
+		 * @return whether to plot the chunk: false once the render has converged before it, or a walker failed
+		 */
+		synchronized boolean admit(int c) throws InterruptedException {
+			while (c - merged > window && c < limit && !failed) wait();
+			return c < limit && !failed;
+		}
+		
+		/**
+		 * Releases the walkers waiting in {@link #admit(int)} when a walker fails
+		 */
+		synchronized void abort() {
+			failed = true;
+			notifyAll();
+		}
+		
+		/**
+		 * @return an empty histogram to plot a chunk into, see {@link #chunkHistogram()}
+		 */
+		synchronized Histogram buffer() {
+			return free.isEmpty()? chunkHistogram() : free.pop();
+		}
+		
+		/**
+		 * Estimates the error left in the image from its change since the last check: the mean change of the color
+		 * channels of the pixels hit, scaled by the square root of the chunks in the total
+		 * @param chunks number of chunks merged
+		 * @return whether the estimate has been within the tolerance for {@link #CONVERGED_CHECKS} checks in a row
+		 */
+		private boolean converged(BufferedImage img, int chunks) {
+			int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+			int[] previous = this.previous;
+			this.previous = pixels;
+			if (previous == null) return false;
+			int background = pack(bgColor.x, bgColor.y, bgColor.z), hit = 0;
+			long change = 0;
+			for (int i = 0; i < pixels.length; i++) {
+				int a = pixels[i], b = previous[i];
+				if (a == background && b == background) continue;
+				hit++;
+				change += Math.abs((a >>> 16 & 0xff) - (b >>> 16 & 0xff)) +
+						Math.abs((a >>> 8 & 0xff) - (b >>> 8 & 0xff)) + Math.abs((a & 0xff) - (b & 0xff));
+			}
+			double error = (hit == 0)? 0 : change * Math.sqrt(chunks - first) / (255 * 3.0 * hit);
+			passed = (error < tolerance)? passed + 1 : 0;
+			return passed >= CONVERGED_CHECKS;
+		}
+		
+		void complete(int chunk, Histogram histogram) {
+			if (chunk >= limit) {
+				histogram.clear();
+				synchronized (this) {
+					free.push(histogram);
+				}
+				return;
+			}
+			synchronized (this) {
+				completed[chunk] = histogram;
+				if (merging) return;
+				merging = true;
+			}
+			while (true) {
+				Histogram next;
+				int chunks;
+				synchronized (this) {
+					if (merged == limit || completed[merged] == null) {
+						merging = false;
+						return;
+					}
+					next = completed[merged];
+					completed[merged++] = null;
+					chunks = merged;
+					notifyAll();
+				}
+				boolean whole = (long) chunks * CHUNK <= iterations;
+				if (checkpointFile != null && !whole && !inPlace) checkpoint(chunks - 1);
+				awaitSnapshot();
+				// a checkpoint in place is only consistent between merges
+				if (inPlace) ((OffHeapHistogram) total).setMetadata(MERGED, -1);
+				total.merge(next);
+				if (inPlace) record((OffHeapHistogram) total, chunks);
+				next.clear();
+				synchronized (this) {
+					free.push(next);
+				}
+				BufferedImage img = null;
+				if (bgColor != null && tolerance > 0 && chunks < limit) {
+					img = drawHistogram(total, bgColor);
+					if (converged(img, chunks)) {
+						synchronized (this) {
+							limit = chunks;
+							notifyAll();
+						}
+					}
+				}
+				if (checkpointFile != null && whole &&
+						(chunks == limit || System.nanoTime() - checkpoint >= checkpointInterval * 1_000_000))
+					checkpoint(chunks);
+				// the last snapshot is the finished image
+				if (snapshots != null && chunks < limit &&
+						System.nanoTime() - snapshot >= snapshotInterval * 1_000_000) {
+					BufferedImage checked = img;
+					int n = (chunks - first) * CHUNK;
+					snapshotting = snapshots.submit(() -> {
+						BufferedImage shown = (checked != null)? checked : drawHistogram(total, bgColor);
+						for (Listener l : listeners) l.snapshot(shown, n);
+					});
+					snapshot = System.nanoTime();
+				}
+			}
+		}
+		
+		/**
+		 * Waits for the snapshot in progress, which reads the total
+		 */
+		private void awaitSnapshot() {
+			if (snapshotting == null) return;
+			try {
+				snapshotting.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("snapshot failed", e);
+			} finally {
+				snapshotting = null;
+			}
+		}
+		
+		/**
+		 * Waits for the last snapshot, so that it reaches the listeners before the finished image, and stops the
+		 * snapshot thread
+		 */
+		void finish() {
+			if (snapshots == null) return;
+			try {
+				awaitSnapshot();
+			} finally {
+				snapshots.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Receives the points plotted by a walker
+	 */
+	private interface Sink {
+		void plot(int x, int y, double[] p);
+		
+		/**
+		 * Writes out anything still buffered
+		 */
+		default void flush() {}
+	}
+	
+	/**
+	 * Buffers points and plots them block by block. The chaos game hits pixels all over the canvas, so on a canvas
+	 * much larger than the caches almost every hit misses. Points are collected in a buffer; when it is full, they
+	 * are sorted by block of 2<sup>{@value #BLOCK}</sup> consecutive pixels with a counting sort and plotted in that order, so
+	 * the hits of a block land together. The sort is stable: each pixel still sees its hits in the order they came.
+	 */
+	private static class BinningSink implements Sink {
+		private static final int SIZE = 1 << 16;
+		/**
+		 * log2 of the pixels per block; 4096 pixels take 128 kB of counts and colors
+		 */
+		private static final int BLOCK = 12;
+		
+		private final Histogram histogram;
+		private final int[] keys = new int[SIZE];
+		private final double[] colors = new double[3 * SIZE];
+		private final int[] order = new int[SIZE];
+		private final int[] starts;
+		private int n;
+		
+		BinningSink(Histogram histogram) {
+			this.histogram = histogram;
+			starts = new int[(histogram.size() >>> BLOCK) + 2];
+		}
+		
+		@Override
+		public void plot(int x, int y, double[] p) {
+			int c = 3 * n;
+			keys[n] = histogram.index(x, y);
+			colors[c] = p[R];
+			colors[c + 1] = p[G];
+			colors[c + 2] = p[B];
+			if (++n == SIZE) flush();
+		}
+		
+		@Override
+		public void flush() {
+			Arrays.fill(starts, 0);
+			for (int j = 0; j < n; j++) starts[(keys[j] >>> BLOCK) + 1]++;
+			for (int b = 1; b < starts.length; b++) starts[b] += starts[b - 1];
+			for (int j = 0; j < n; j++) order[starts[keys[j] >>> BLOCK]++] = j;
+			for (int j = 0; j < n; j++) {
+				int e = order[j], c = 3 * e;
+				histogram.add(keys[e], colors[c], colors[c + 1], colors[c + 2]);
+			}
+			n = 0;
+		}
+	}
+	
+	/**
+	 * Write-combining buffer in front of a shared histogram of color sums: a small direct-mapped table of pixels,
+	 * each counting its hits and summing their colors locally. An entry is written to the histogram with one atomic
+	 * update when another pixel takes its place, so the walker touches shared memory once per run of hits rather than
+	 * per hit.
+	 */
+	private static class CombiningSink implements Sink {
+		private static final int SIZE = 1 << 10;
+		
+		private final Histogram histogram;
+		private final int[] keys = new int[SIZE];
+		private final int[] counts = new int[SIZE];
+		private final double[] colors = new double[3 * SIZE];
+		
+		CombiningSink(Histogram histogram) {
+			this.histogram = histogram;
+		}
+		
+		@Override
+		public void plot(int x, int y, double[] p) {
+			int key = histogram.index(x, y);
+			int e = (key * 0x9e3779b1) >>> 22; // top 10 bits of a Fibonacci hash
+			int c = 3 * e;
+			if (counts[e] > 0 && keys[e] == key) {
+				counts[e]++;
+				colors[c] += p[R];
+				colors[c + 1] += p[G];
+				colors[c + 2] += p[B];
+				return;
+			}
+			write(e);
+			keys[e] = key;
+			counts[e] = 1;
+			colors[c] = p[R];
+			colors[c + 1] = p[G];
+			colors[c + 2] = p[B];
+		}
+		
+		@Override
+		public void flush() {
+			for (int e = 0; e < SIZE; e++) write(e);
+		}
+		
+		private void write(int e) {
+			if (counts[e] == 0) return;
+			int c = 3 * e;
+			histogram.addAtomic(keys[e], counts[e], colors[c], colors[c + 1], colors[c + 2]);
+			counts[e] = 0;
+		}
 	}
 	
 	public static void main(String[] args) {
@@ -203,8 +1408,8 @@ public class Renderer {
 			List<String> source = Utils.readFile(file);
 			IFSDescriptor d = new IFSDescriptor(source);
 			Renderer renderer = new Renderer(d, pixelScale);
-			BufferedImage img = renderer.render(10_000_000);
-			renderer.display(img);
+			renderer.setThreads(Runtime.getRuntime().availableProcessors());
+			renderer.display(10_000_000);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -0,0 +1,215 @@
+package ifs;
+
+import java.util.Arrays;
+
+/**
+ * Histogram storing only the pixels that were hit, in an open-addressing hash table keyed by pixel index, for
+ * attractors covering a small part of the canvas. Once a quarter of the pixels are hit the table is converted to an
+ * {@link ArrayHistogram}, which then holds the pixels in less memory. Only {@link #addAtomic} may be called from
+ * several threads at once: other updates, merges included, must come from one thread at a time.
+ */
+public class SparseHistogram extends Histogram {
+
+	/**
+	 * Fraction of the pixels hit at which the histogram turns dense
+	 */
+	private static final double DENSE = 0.25;
+
+	/**
+	 * Pixel index + 1 in each slot, 0 for empty slots
+	 */
+	private int[] keys;
+	private long[] counts;
+	private double[] colors;
+	private int occupied, shift;
+	private final int limit;
+	private ArrayHistogram dense;
+
+	public SparseHistogram(int width, int height, int depth, Renderer.ColorMode colorMode, Layout layout) {
+		this(width, height, depth, colorMode, layout, 1 << 10);
+	}
+
+	/**
+	 * @param depth number of planes of a voxel grid, 1 for an image
+	 * @param capacity number of pixels expected to be hit
+	 */
+	public SparseHistogram(int width, int height, int depth, Renderer.ColorMode colorMode, Layout layout,
+			int capacity) {
+		super(width, height, depth, colorMode, layout);
+		limit = (int) (size() * DENSE);
+		int slots = 16;
+		while (slots < 2 * Math.min(capacity, limit)) slots <<= 1;
+		allocate(slots);
+	}
+
+	private void allocate(int slots) {
+		keys = new int[slots];
+		counts = new long[slots];
+		colors = new double[3 * slots];
+		shift = 32 - Integer.numberOfTrailingZeros(slots);
+		occupied = 0;
+	}
+
+	/**
+	 * @return whether the histogram was converted to a dense one
+	 */
+	public boolean isDense() {
+		return dense != null;
+	}
+
+	/**
+	 * @return slot holding pixel <code>i</code>, or the empty slot where it would go
+	 */
+	private int slot(int i) {
+		int mask = keys.length - 1;
+		int s = (i * 0x9e3779b9) >>> shift;
+		while (keys[s] != 0 && keys[s] != i + 1) s = (s + 1) & mask;
+		return s;
+	}
+
+	/**
+	 * @return slot of pixel <code>i</code>, added if needed, or -1 if the histogram turned dense
+	 */
+	private int insert(int i) {
+		int s = slot(i);
+		if (keys[s] != 0) return s;
+		if (occupied >= limit) {
+			toDense();
+			return -1;
+		}
+		if (2 * (occupied + 1) > keys.length) {
+			grow();
+			s = slot(i);
+		}
+		keys[s] = i + 1;
+		occupied++;
+		return s;
+	}
+
+	private void grow() {
+		int[] k = keys;
+		long[] n = counts;
+		double[] c = colors;
+		int occupied = this.occupied;
+		allocate(2 * k.length);
+		for (int j = 0; j < k.length; j++) {
+			if (k[j] == 0) continue;
+			int s = slot(k[j] - 1);
+			keys[s] = k[j];
+			counts[s] = n[j];
+			System.arraycopy(c, 3 * j, colors, 3 * s, 3);
+		}
+		this.occupied = occupied;
+	}
+
+	private void toDense() {
+		dense = new ArrayHistogram(width, height, depth, colorMode, layout);
+		for (int j = 0; j < keys.length; j++) {
+			if (keys[j] != 0) dense.set(keys[j] - 1, counts[j], colors[3 * j], colors[3 * j + 1], colors[3 * j + 2]);
+		}
+		keys = null;
+		counts = null;
+		colors = null;
+	}
+
+	@Override
+	public long count(int i) {
+		if (dense != null) return dense.count(i);
+		int s = slot(i);
+		return (keys[s] == 0)? 0 : counts[s];
+	}
+
+	@Override
+	public double value(int i, int c) {
+		if (dense != null) return dense.value(i, c);
+		int s = slot(i);
+		return (keys[s] == 0)? 0 : colors[3 * s + c];
+	}
+
+	@Override
+	protected void set(int i, long n, double r, double g, double b) {
+		int s = (dense != null)? -1 : insert(i);
+		if (s < 0) {
+			dense.set(i, n, r, g, b);
+			return;
+		}
+		counts[s] = n;
+		colors[3 * s] = r;
+		colors[3 * s + 1] = g;
+		colors[3 * s + 2] = b;
+	}
+
+	@Override
+	public void add(int i, double r, double g, double b) {
+		int s = (dense != null)? -1 : insert(i);
+		if (s < 0) {
+			dense.add(i, r, g, b);
+			return;
+		}
+		counts[s]++;
+		int c = 3 * s;
+		if (sum) {
+			colors[c] += r;
+			colors[c + 1] += g;
+			colors[c + 2] += b;
+		} else {
+			colors[c] = (colors[c] + r)/2;
+			colors[c + 1] = (colors[c + 1] + g)/2;
+			colors[c + 2] = (colors[c + 2] + b)/2;
+		}
+	}
+
+	/**
+	 * Updates are serialized on the histogram: sparse histograms are meant for walkers that own them
+	 */
+	@Override
+	public synchronized void addAtomic(int i, long n, double r, double g, double b) {
+		int s = (dense != null)? -1 : insert(i);
+		if (s < 0) {
+			dense.addAtomic(i, n, r, g, b);
+			return;
+		}
+		counts[s] += n;
+		int c = 3 * s;
+		colors[c] = sum? colors[c] + r : (colors[c] + r)/2;
+		colors[c + 1] = sum? colors[c + 1] + g : (colors[c + 1] + g)/2;
+		colors[c + 2] = sum? colors[c + 2] + b : (colors[c + 2] + b)/2;
+	}
+
+	@Override
+	public long maxCount(int start, int end) {
+		if (dense != null) return dense.maxCount(start, end);
+		long max = 0;
+		for (int j = 0; j < keys.length; j++) {
+			int i = keys[j] - 1;
+			if (i >= start && i < end && counts[j] > max) max = counts[j];
+		}
+		return max;
+	}
+
+	/**
+	 * Adds the pixels hit in <code>[start, end)</code> to another histogram, see {@link #merge(Histogram, int, int)}
+	 */
+	void mergeInto(Histogram to, int start, int end) {
+		for (int j = 0; j < keys.length; j++) {
+			int i = keys[j] - 1;
+			if (i >= start && i < end) to.merge(i, counts[j], colors[3 * j], colors[3 * j + 1], colors[3 * j + 2]);
+		}
+	}
+
+	/**
+	 * Empties the histogram, turning it sparse again
+	 */
+	@Override
+	public void clear() {
+		if (dense != null) {
+			dense = null;
+			allocate(1 << 10);
+			return;
+		}
+		Arrays.fill(keys, 0);
+		Arrays.fill(counts, 0);
+		Arrays.fill(colors, 0);
+		occupied = 0;
+	}
+}
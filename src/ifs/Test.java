@@ -2,10 +2,13 @@ package ifs;
 
 import utils.Color3f;
 import utils.Utils;
+import utils.math.geom.Vector3f;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -26,7 +29,7 @@ public class Test {
 			String s[] = builder.print().split("\n");
 			IFSDescriptor descriptor = new IFSDescriptor(Arrays.asList(s));
 			Renderer renderer = new Renderer(descriptor, 350);
-			renderer.display(renderer.render(10_000_000));
+			renderer.display(10_000_000);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -41,7 +44,7 @@ public class Test {
 			builder.genRandom(2, rand);
 			IFSDescriptor descriptor = new IFSDescriptor(Arrays.asList(builder.randomizeAndPrint().split("\n")));
 			Renderer renderer = new Renderer(descriptor, 350);
-			renderer.display(renderer.render(10_000_000));
+			renderer.display(10_000_000);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -93,6 +96,273 @@ public class Test {
 		}
 	}
 	
+	/**
+	 * Builds a seeded descriptor for benchmarks: four random affine functions and <code>functions</code> other ones
+	 * @param symmetry order of the rotational symmetry to add, 0 for none
+	 */
+	private static IFSDescriptor randomDescriptor(IFSBuilder builder, int functions, int symmetry) throws Exception {
+		Random rand = new Random(1);
+		for (int i = 0; i < 4; i++)
+			builder.addTemplate(builder.affine, rand.nextDouble(), builder.randomColor(rand));
+		builder.genRandom(functions, rand);
+		if (symmetry > 0) builder.addSymmetry(symmetry);
+		return new IFSDescriptor(Arrays.asList(builder.randomizeAndPrint().split("\n")), 1);
+	}
+	
+	/**
+	 * Checks that the in-place iteration API allocates nothing in steady state, on every backend
+	 * @throws IllegalStateException if a backend's iterations allocate
+	 */
+	private static void allocationCheck() throws Exception {
+		IFSDescriptor d = randomDescriptor(new IFSBuilder("Allocation", -2, 2, -2, 2), 4, 3);
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		for (IFSDescriptor.Backend backend : IFSDescriptor.Backend.values()) {
+			d.setBackend(backend);
+			double[] state = d.newState();
+			for (int i = 0; i < 2_000_000; i++) d.iterate(state, i); // warm up
+			int n = 10_000_000;
+			long before = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++) d.iterate(state, i);
+			long time = System.nanoTime() - start;
+			long bytes = threads.getThreadAllocatedBytes(thread) - before;
+			System.out.printf("%s: %d bytes allocated in %d iterations, %.1f ns/iteration%n", backend, bytes, n,
+					(double) time / n);
+			if (bytes > 0)
+				throw new IllegalStateException(backend + " allocated " + bytes + " bytes in " + n + " iterations");
+		}
+	}
+	
+	/**
+	 * Checks that parallel plots with private histograms hit the same pixels as the shared accumulators, into dense
+	 * and sparse histograms: the walkers use the same streams whatever the accumulator, so only the order of the hits
+	 * differs
+	 * @throws IllegalStateException if the hit counts of a pixel differ
+	 */
+	private static void parallelCheck() throws Exception {
+		IFSBuilder builder = new IFSBuilder("Parallel", -2, 2, -2, 2);
+		builder.addFunction(1, "0.5 * _x", "0.5 * _y", Color3f.red);
+		builder.addFunction(1, "0.5 * _x + 0.5", "0.5 * _y", Color3f.green);
+		builder.addFunction(1, "0.5 * _x + 0.25", "0.5 * _y + sqrt(3) / 4", Color3f.blue);
+		IFSDescriptor d = new IFSDescriptor(Arrays.asList(builder.print().split("\n")), 1);
+		Histogram expected = null;
+		for (Renderer.Accumulator accumulator : Renderer.Accumulator.values()) {
+			for (double coverage : new double[] {0, 1}) {
+				Renderer r = new Renderer(d, 150, 1);
+				r.setThreads(4);
+				r.setAccumulator(accumulator);
+				r.setColorMode(Renderer.ColorMode.SUM);
+				r.setSparseCoverage(coverage);
+				Histogram h = r.plot(4_000_000, 20);
+				if (expected == null) expected = h;
+				for (int y = 0; y < h.getHeight(); y++) {
+					for (int x = 0; x < h.getWidth(); x++) {
+						int i = h.index(x, y);
+						if (h.count(i) != expected.count(i))
+							throw new IllegalStateException(accumulator + " (" + h.getClass().getSimpleName() +
+									") hit (" + x + ", " + y + ") " + h.count(i) + " times rather than " +
+									expected.count(i));
+					}
+				}
+				System.out.println(accumulator + " (" + h.getClass().getSimpleName() + "): same hits");
+			}
+		}
+	}
+	
+	/**
+	 * Compares the parallel accumulation backends at several canvas sizes and thread counts. Private histograms
+	 * take one canvas per thread; configurations that would not fit in the heap are skipped.
+	 */
+	private static void accumulatorBenchmark() {
+		try {
+			IFSDescriptor d = randomDescriptor(new IFSBuilder("Accumulator", -2, 2, -2, 2), 2, 0);
+			int iterations = 10_000_000;
+			long heap = Runtime.getRuntime().maxMemory();
+			for (int scale : new int[] {100, 250, 500}) {
+				for (int threads : new int[] {1, 2, 4, 8}) {
+					for (Renderer.Accumulator accumulator : Renderer.Accumulator.values()) {
+						Renderer r = new Renderer(d, scale, 1);
+						r.setThreads(threads);
+						r.setAccumulator(accumulator);
+						long canvas = 32L * r.getWidth() * r.getHeight(); // bytes of a histogram
+						long bytes = (accumulator == Renderer.Accumulator.PRIVATE)? canvas * threads : canvas;
+						if (bytes > heap / 2) {
+							System.out.printf("%dx%d, %d threads, %s: %d MB, skipped%n", r.getWidth(), r.getHeight(),
+									threads, accumulator, bytes >> 20);
+							continue;
+						}
+						r.plot(iterations / 10, 20); // warm up
+						long start = System.nanoTime();
+						r.plot(iterations, 20);
+						long time = System.nanoTime() - start;
+						System.out.printf("%dx%d, %d threads, %s: %d MB, %d ms, %.1f ns/point%n", r.getWidth(),
+								r.getHeight(), threads, accumulator, bytes >> 20, time / 1_000_000,
+								(double) time / iterations);
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Times plotting with and without binning points by block, on canvases from 200x200 to 4000x4000, to find the
+	 * size from which binning pays off
+	 */
+	private static void binningBenchmark() {
+		try {
+			IFSDescriptor d = randomDescriptor(new IFSBuilder("Binning", -2, 2, -2, 2), 2, 0);
+			int iterations = 20_000_000;
+			for (int scale : new int[] {50, 100, 125, 250, 500, 1000}) {
+				for (int threshold : new int[] {Integer.MAX_VALUE, 0}) {
+					Renderer r = new Renderer(d, scale, 1);
+					r.setBinningThreshold(threshold);
+					r.plot(iterations / 10, 20); // warm up
+					long start = System.nanoTime();
+					r.plot(iterations, 20);
+					long time = System.nanoTime() - start;
+					System.out.printf("%dx%d, %s: %d ms, %.1f ns/point%n", r.getWidth(), r.getHeight(),
+							(threshold == 0)? "binned" : "direct", time / 1_000_000, (double) time / iterations);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Times plotting into row-major and Morton histograms, with and without binning, on canvases from 400x400 to
+	 * 4000x4000
+	 */
+	private static void layoutBenchmark() {
+		try {
+			IFSDescriptor d = randomDescriptor(new IFSBuilder("Layout", -2, 2, -2, 2), 2, 0);
+			int iterations = 20_000_000;
+			for (int scale : new int[] {100, 250, 500, 1000}) {
+				for (Histogram.Layout layout : Histogram.Layout.values()) {
+					for (int threshold : new int[] {Integer.MAX_VALUE, 0}) {
+						Renderer r = new Renderer(d, scale, 1);
+						r.setLayout(layout);
+						r.setBinningThreshold(threshold);
+						r.plot(iterations / 10, 20); // warm up
+						long start = System.nanoTime();
+						r.plot(iterations, 20);
+						long time = System.nanoTime() - start;
+						System.out.printf("%dx%d, %s, %s: %d ms, %.1f ns/point%n", r.getWidth(), r.getHeight(), layout,
+								(threshold == 0)? "binned" : "direct", time / 1_000_000, (double) time / iterations);
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Times tone mapping a 3840x2160 histogram with one thread and with all processors
+	 */
+	private static void toneMapBenchmark() {
+		try {
+			IFSDescriptor d = randomDescriptor(new IFSBuilder("Tone map", -1.92, 1.92, -1.08, 1.08), 2, 0);
+			Renderer r = new Renderer(d, 1000, 1);
+			Histogram h = r.plot(20_000_000, 20);
+			for (int threads : new int[] {1, Runtime.getRuntime().availableProcessors()}) {
+				r.setThreads(threads);
+				for (int i = 0; i < 5; i++) r.drawHistogram(h, new Vector3f()); // warm up
+				long start = System.nanoTime();
+				for (int i = 0; i < 10; i++) r.drawHistogram(h, new Vector3f());
+				System.out.printf("%dx%d, %d threads: %.1f ms%n", h.getWidth(), h.getHeight(), threads,
+						(System.nanoTime() - start) / 1e7);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Renders the random catalog until each image settles and prints the iterations it took
+	 */
+	private static void convergenceBudgets() {
+		try {
+			File[] files = new File("ifs/random/src").listFiles((dir, name) -> name.endsWith(".ifs"));
+			if (files == null) return;
+			Arrays.sort(files);
+			for (File file : files) {
+				IFSDescriptor d = new IFSDescriptor(Utils.readFile(file.getPath()));
+				Renderer r = new Renderer(d, 400, 1);
+				r.setThreads(Runtime.getRuntime().availableProcessors());
+				long start = System.nanoTime();
+				r.renderConverged(50_000_000);
+				System.out.printf("%s: %d iterations, %d ms%n", file.getName(), r.getIterations(),
+						(System.nanoTime() - start) / 1_000_000);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Prints which functions of the random catalog are evaluated by the affine fast path
+	 */
+	private static void affineCoverage() {
+		try {
+			File[] files = new File("ifs/random/src").listFiles((dir, name) -> name.endsWith(".ifs"));
+			if (files == null) return;
+			int affine = 0, total = 0;
+			for (File file : files) {
+				IFSDescriptor d = new IFSDescriptor(Utils.readFile(file.getPath()));
+				for (IFSDescriptor.Function f : d.functions) {
+					if (f.affine) affine++;
+					total++;
+				}
+				System.out.print(d.report());
+			}
+			System.out.printf("%d of %d functions (%.1f%%) affine%n", affine, total, 100.0 * affine / total);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Checks that functions taking the affine fast path give the same bits as the tree interpreter, on random
+	 * points and on signed zeros
+	 * @throws IllegalStateException if an output differs, or no function took the fast path
+	 */
+	private static void affineCheck() throws Exception {
+		IFSBuilder builder = new IFSBuilder("Affine", -2, 2, -2, 2);
+		builder.addFunction(1, "0.5 * _x + 0", "_y / 4 - 0.3 * _x", Color3f.red);
+		builder.addFunction(1, "-(0.7 * _x) + 0.1 - _y", "0.1 + _y * -0.3 + 0.2 * _x", Color3f.green);
+		builder.addFunction(1, "0.5 * (_x + 1)", "_x + _x - 0.9 * _x", Color3f.blue);
+		builder.addSymmetry(3);
+		IFSDescriptor[] descriptors = {new IFSDescriptor(Arrays.asList(builder.print().split("\n")), 1),
+				randomDescriptor(new IFSBuilder("Affine", -2, 2, -2, 2), 4, 5)};
+		Random rand = new Random(1);
+		int affine = 0;
+		for (IFSDescriptor d : descriptors) {
+			for (IFSDescriptor.Function f : d.functions) {
+				if (!f.affine) continue;
+				affine++;
+				utils.math.parser.Kernel tree = new utils.math.parser.TreeKernel(f.block);
+				for (int i = 0; i < 100_000; i++) {
+					double[] state = d.newState();
+					for (int j = 0; j < 5; j++) state[j] = (i < 32)? ((i >> j & 1) == 0? 0.0 : -0.0) :
+							rand.nextDouble() * 4 - 2;
+					double[] expected = state.clone();
+					tree.apply(expected, expected);
+					f.kernel.apply(state, state);
+					if (!Arrays.equals(Arrays.copyOf(state, 5), Arrays.copyOf(expected, 5)))
+						throw new IllegalStateException(d.report() + "affine " + Arrays.toString(state) +
+								" != tree " + Arrays.toString(expected));
+				}
+			}
+		}
+		if (affine == 0) throw new IllegalStateException("no function took the affine path");
+		System.out.println(affine + " affine functions match the tree interpreter");
+	}
+
 	static void renderList(int... l) {
 		try {
 			for (int i = 0; i < l.length; i++) {
@@ -1,13 +1,15 @@
 package ifs.ifs3d;
 
 import ifs.IFSDescriptor;
+import utils.RandomStreams;
+import utils.math.parser.Expression;
 import utils.math.parser.MathParser2;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 public class IFSDescriptor3D extends IFSDescriptor {
 	
@@ -50,39 +52,37 @@ public class IFSDescriptor3D extends IFSDescriptor {
 				} catch(Exception e) {/* skip if parse fails */}
 			});
 		}
-		rand = new Random();
+		bind();
+		buildSelector();
+		setStreams(new RandomStreams());
 	}
 	
-	double[] runFunc(double[] p, int i) throws Exception {
-		Map<String, Double> vars = new HashMap<>();
-		vars.put("_x", p[X]);
-		vars.put("_y", p[Y]);
-		vars.put("_z", p[Z]);
-		vars.put("_r", p[R]);
-		vars.put("_g", p[G]);
-		vars.put("_b", p[B]);
-		vars.put("_i", (double) i);
-		double r2 = p[X] * p[X] + p[Y] * p[Y] + p[Z] * p[Z];
-		double r = Math.sqrt(r2);
-		vars.put("_R2", r2);
-		vars.put("_R", r);
-		vars.put("_theta", Math.atan2(p[Y], p[X])); // really there are many angles
-		vars.put("_alpha", Math.acos(p[X] / r)); // angle with x axis
-		vars.put("_beta", Math.acos(p[Y] / r)); // angle with y axis
-		vars.put("_gamma", Math.acos(p[Z] / r)); // angle with z axis
-		vars.putAll(globals);
-		double rn = rand.nextDouble();
-		double a = 0.0;
-		for (Function f : functions) {
-			if (rn < (a += f.prob)) {
-				return f.run(vars);
-			}
+	@Override
+	protected Map<String, Integer> builtins() {
+		Map<String, Integer> b = super.builtins();
+		b.put("_z", Z);
+		b.put("_alpha", ALPHA);
+		b.put("_beta", BETA);
+		b.put("_gamma", GAMMA);
+		return b;
+	}
+	
+	@Override
+	protected void derive(double[] env, int needed) {
+		if ((needed & (1 << R2 | 1 << RADIUS | 1 << ALPHA | 1 << BETA | 1 << GAMMA)) != 0) {
+			env[R2] = env[X] * env[X] + env[Y] * env[Y] + env[Z] * env[Z];
+			double r = Math.sqrt(env[R2]);
+			env[RADIUS] = r;
+			if ((needed & 1 << ALPHA) != 0) env[ALPHA] = Math.acos(env[X] / r); // angle with x axis
+			if ((needed & 1 << BETA) != 0) env[BETA] = Math.acos(env[Y] / r); // angle with y axis
+			if ((needed & 1 << GAMMA) != 0) env[GAMMA] = Math.acos(env[Z] / r); // angle with z axis
 		}
-		throw new Exception("Probabilities did not add up");
+		if ((needed & 1 << THETA) != 0) env[THETA] = Math.atan2(env[Y], env[X]); // really there are many angles
 	}
 	
 	private class Function3D extends Function {
 		List<String> zrpn;
+		Expression z;
 		
 		Function3D(String x, String y, String z, String r, String g, String b, String prob) throws Exception {
 			super(x, y, r, g, b, prob);
@@ -90,17 +90,16 @@ public class IFSDescriptor3D extends IFSDescriptor {
 		}
 		
 		@Override
-		public double[] run(Map<String, Double> vars) throws Exception {
-			double[] res = super.run(vars);
-			double z = MathParser2.parseRPN(zrpn);
-			double[] p = new double[6];
-			p[X] = res[X];
-			p[Y] = res[Y];
-			p[Z] = z;
-			p[R] = res[R];
-			p[G] = res[G];
-			p[B] = res[B];
-			return p;
+		protected void compile(Map<String, Integer> slots) throws Exception {
+			super.compile(slots);
+			z = MathParser2.compile(zrpn, slots);
+		}
+		
+		@Override
+		protected Expression[] outputs() {
+			Expression[] e = Arrays.copyOf(super.outputs(), 6);
+			e[Z] = z;
+			return e;
 		}
 	}
 }
@@ -1,5 +1,9 @@
 package ifs.ifs3d;
 
+import ifs.ArrayHistogram;
+import ifs.Histogram;
+import ifs.Renderer;
+import utils.RandomStreams;
 import utils.math.geom.Vector3i;
 
 import javax.imageio.ImageIO;
@@ -13,7 +17,7 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 import static ifs.ifs3d.IFSDescriptor3D.X;
 import static ifs.ifs3d.IFSDescriptor3D.Y;
@@ -21,7 +25,6 @@ import static ifs.ifs3d.IFSDescriptor3D.Z;
 import static ifs.ifs3d.IFSDescriptor3D.R;
 import static ifs.ifs3d.IFSDescriptor3D.G;
 import static ifs.ifs3d.IFSDescriptor3D.B;
-import static ifs.ifs3d.IFSDescriptor3D.FREQ;
 
 public class Renderer3D {
 	
@@ -29,50 +32,49 @@ public class Renderer3D {
 	
 	double voxelScale;
 	
-	Random rand = new Random();
+	RandomGenerator rand = new RandomStreams().stream(0);
+	
+	/**
+	 * Storage order of the voxel grid
+	 */
+	Histogram.Layout layout = Histogram.Layout.ROW_MAJOR;
 	
 	Renderer3D(IFSDescriptor3D descriptor, double voxelScale) {
 		this.descriptor = descriptor;
 		this.voxelScale = voxelScale;
 	}
 	
-	double[][][][] plot(int iterations, int iterFloor) {
+	Histogram plot(int iterations, int iterFloor) {
 		Vector3i size = getSize();
-		// 3 axes, RGB + FREQ (4 attributes) per voxel
-		double[][][][] histogram = new double[size.x][size.y][size.z][4];
-		// x, y, z, r, g, b
-		double[] p = new double[6];
+		// hit count and blended color per voxel
+		Histogram histogram = new ArrayHistogram(size.x, size.y, size.z, Renderer.ColorMode.BLEND, layout);
+		// r, g, b, x, y, z followed by the descriptor's environment
+		double[] p = descriptor.newState();
 		p[X] = descriptor.xmin + rand.nextDouble() * (descriptor.xmax - descriptor.xmin);
 		p[Y] = descriptor.ymin + rand.nextDouble() * (descriptor.ymax - descriptor.ymin);
 		p[Z] = descriptor.zmin + rand.nextDouble() * (descriptor.zmax - descriptor.zmin);
 		for (int i = 0; i < iterations; i++) {
-			try {
-				p = descriptor.runFunc(p, i);
-			} catch (Exception e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
+			descriptor.iterate(p, i);
 			if (i % 1_000_000 == 0) System.out.println(i);
 			if (i > iterFloor) {
-				Vector3i pos = scalePoint(p);
-				if (pos.x < size.x && pos.x >= 0 &&
-						pos.y < size.y && pos.y >= 0 &&
-						pos.z < size.z && pos.z >= 0) {
-					histogram[pos.x][pos.y][pos.z][FREQ]++;
-					histogram[pos.x][pos.y][pos.z][R] = (histogram[pos.x][pos.y][pos.z][R] + p[R]) / 2;
-					histogram[pos.x][pos.y][pos.z][G] = (histogram[pos.x][pos.y][pos.z][G] + p[G]) / 2;
-					histogram[pos.x][pos.y][pos.z][B] = (histogram[pos.x][pos.y][pos.z][B] + p[B]) / 2;
+				int x = (int) ((p[X] - descriptor.xmin) * voxelScale);
+				int y = (int) ((p[Y] - descriptor.ymin) * voxelScale);
+				int z = (int) ((p[Z] - descriptor.zmin) * voxelScale);
+				if (x < size.x && x >= 0 &&
+						y < size.y && y >= 0 &&
+						z < size.z && z >= 0) {
+					histogram.add(histogram.index(x, y, z), p[R], p[G], p[B]);
 				}
 			}
 		}
 		return histogram;
 	}
 	
-	double[][][][] process(double[][][][] histogram) {
+	Histogram process(Histogram histogram) {
 		return histogram;
 	}
 	
-	BufferedImage render2d(double[][][][] voxelData) {
+	BufferedImage render2d(Histogram voxelData) {
 		return null;
 	}
 	
@@ -82,13 +84,6 @@ public class Renderer3D {
 				(int) ((descriptor.zmax - descriptor.zmin) * voxelScale));
 	}
 	
-	Vector3i scalePoint(double[] p) {
-		int x = (int) ((p[X] - descriptor.xmin) * voxelScale);
-		int y = (int) ((p[Y] - descriptor.ymin) * voxelScale);
-		int z = (int) ((p[Z] - descriptor.zmin) * voxelScale);
-		return new Vector3i(x, y, z);
-	}
-	
 	void display(BufferedImage img) {
 		JFrame f = new JFrame("IFS: " + descriptor.name) {
 			public void paint(Graphics g) {
@@ -0,0 +1,126 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8 bit RGB PNG image strip by strip, top to bottom, so images larger than the heap can be encoded: only
+ * the row being filtered and the deflater's window are held in memory.
+ */
+public class PngWriter implements Closeable {
+	
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	/**
+	 * Bytes of image data per IDAT chunk
+	 */
+	private static final int CHUNK = 1 << 16;
+	
+	private final OutputStream out;
+	private final int width, height;
+	private final Deflater deflater = new Deflater();
+	private final DeflaterOutputStream data;
+	private final byte[] row;
+	private int rows;
+	
+	/**
+	 * Writes the header of an image
+	 * @param out stream to write to, closed with this writer
+	 */
+	public PngWriter(OutputStream out, int width, int height) throws IOException {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("empty image: " + width + "x" + height);
+		if ((3L * width + 1) > Integer.MAX_VALUE) throw new IllegalArgumentException("image too wide: " + width);
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		row = new byte[3 * width + 1];
+		out.write(SIGNATURE);
+		chunk("IHDR", ByteBuffer.allocate(13).putInt(width).putInt(height).put((byte) 8).put((byte) 2).put((byte) 0)
+				.put((byte) 0).put((byte) 0).array(), 13);
+		data = new DeflaterOutputStream(new FilterOutputStream(out) {
+			private final byte[] buffer = new byte[CHUNK];
+			private int length;
+	
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+	
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int n = Math.min(len, CHUNK - length);
+					System.arraycopy(b, off, buffer, length, n);
+					length += n;
+					off += n;
+					len -= n;
+					if (length == CHUNK) flush();
+				}
+			}
+	
+			@Override
+			public void flush() throws IOException {
+				if (length > 0) chunk("IDAT", buffer, length);
+				length = 0;
+			}
+	
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		}, deflater, CHUNK);
+	}
+	
+	/**
+	 * Writes the next rows of the image
+	 * @param pixels RGB pixels, row by row
+	 * @param offset index of the first pixel in <code>pixels</code>
+	 * @param count number of rows to write
+	 */
+	public void write(int[] pixels, int offset, int count) throws IOException {
+		if (rows + count > height) throw new IllegalStateException("image has only " + height + " rows");
+		for (int r = 0; r < count; r++, offset += width) {
+			// filter type 0: bytes as they are
+			for (int i = 0, b = 1; i < width; i++) {
+				int p = pixels[offset + i];
+				row[b++] = (byte) (p >> 16);
+				row[b++] = (byte) (p >> 8);
+				row[b++] = (byte) p;
+			}
+			data.write(row);
+		}
+		rows += count;
+	}
+	
+	private void chunk(String type, byte[] bytes, int length) throws IOException {
+		byte[] name = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(bytes, 0, length);
+		out.write(ByteBuffer.allocate(8).putInt(length).put(name).array());
+		out.write(bytes, 0, length);
+		out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+	}
+	
+	/**
+	 * Ends the image and closes the stream
+	 * @throws IllegalStateException if some rows were not written
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (rows < height) throw new IllegalStateException("only " + rows + " of " + height + " rows written");
+			data.finish();
+			data.close();
+			chunk("IEND", new byte[0], 0);
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+}
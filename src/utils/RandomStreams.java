@@ -0,0 +1,89 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+ * Reproducible random number streams derived from one seed. Jumpable algorithms (such as Xoroshiro128PlusPlus) give
+ * stream <code>n</code> by jumping the seeded generator <code>n</code> times, so streams are disjoint stretches of
+ * one sequence and never overlap; jumped generators are kept, so each stream costs one jump however many are
+ * created, in any order. Other algorithms (such as the default L64X128MixRandom) seed each stream with a hash of the
+ * seed and the stream index: such streams are neither split nor jumped, so they are only statistically
+ * independent, as generators seeded with unrelated seeds are. Use a jumpable algorithm where streams must be
+ * guaranteed not to overlap.
+ */
+public class RandomStreams {
+	
+	public static final String DEFAULT_ALGORITHM = "L64X128MixRandom";
+	
+	private final RandomGeneratorFactory<RandomGenerator> factory;
+	private final long seed;
+	
+	/**
+	 * Generators of jumpable streams created so far, by index, up to the highest one
+	 */
+	private final List<RandomGenerator.JumpableGenerator> jumped = new ArrayList<>();
+	
+	/**
+	 * @param algorithm name of a {@link RandomGenerator} algorithm, see {@link RandomGeneratorFactory#of(String)}
+	 * @param seed seed all streams are derived from
+	 */
+	public RandomStreams(String algorithm, long seed) {
+		this.factory = RandomGeneratorFactory.of(algorithm);
+		this.seed = seed;
+	}
+	
+	public RandomStreams(long seed) {
+		this(DEFAULT_ALGORITHM, seed);
+	}
+	
+	/**
+	 * Streams seeded from the system's entropy source
+	 */
+	public RandomStreams() {
+		this(RandomGenerator.getDefault().nextLong());
+	}
+	
+	/**
+	 * Creates the generator of a stream. Every call with the same index returns a generator producing the same
+	 * sequence. Generators are not thread-safe: use one per thread. Streams themselves may be created from any thread.
+	 * @param index stream index
+	 * @return new generator
+	 */
+	public RandomGenerator stream(long index) {
+		if (factory.isJumpable()) return jump(index);
+		return factory.create(mix(seed + index * 0x9e3779b97f4a7c15L));
+	}
+	
+	/**
+	 * @return a copy of the generator jumped to stream <code>index</code>, jumping on from the highest stream so far
+	 */
+	private synchronized RandomGenerator jump(long index) {
+		if (jumped.isEmpty()) jumped.add((RandomGenerator.JumpableGenerator) factory.create(seed));
+		while (jumped.size() <= index) {
+			RandomGenerator.JumpableGenerator g = jumped.get(jumped.size() - 1).copy();
+			g.jump();
+			jumped.add(g);
+		}
+		return jumped.get((int) index).copy();
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	public String getAlgorithm() {
+		return factory.name();
+	}
+	
+	/**
+	 * SplitMix64 finalizer
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,61 @@
+package utils.math;
+
+/**
+ * Walker's alias method: samples an index from a discrete distribution in constant time with a single uniform
+ * random number
+ */
+public class AliasTable {
+	
+	private final double[] prob;
+	private final int[] alias;
+	
+	/**
+	 * Builds the table, using Vose's algorithm
+	 * @param weights relative weight of each index; normalized by their sum
+	 * @throws IllegalArgumentException if a weight is negative or not finite, or all weights are 0
+	 */
+	public AliasTable(double[] weights) {
+		int n = weights.length;
+		double sum = 0;
+		for (double w : weights) {
+			if (!(w >= 0) || Double.isInfinite(w)) throw new IllegalArgumentException("invalid weight: " + w);
+			sum += w;
+		}
+		if (sum <= 0) throw new IllegalArgumentException("weights add up to 0");
+		prob = new double[n];
+		alias = new int[n];
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int ns = 0, nl = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = weights[i] * n / sum;
+			if (scaled[i] < 1) small[ns++] = i;
+			else large[nl++] = i;
+		}
+		while (ns > 0 && nl > 0) {
+			int s = small[--ns], l = large[--nl];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if (scaled[l] < 1) small[ns++] = l;
+			else large[nl++] = l;
+		}
+		// whatever is left over is 1 up to rounding error
+		while (nl > 0) prob[large[--nl]] = 1;
+		while (ns > 0) prob[small[--ns]] = 1;
+	}
+	
+	/**
+	 * @param u uniform random number in [0, 1)
+	 * @return sampled index
+	 */
+	public int sample(double u) {
+		double x = u * prob.length;
+		int i = Math.min((int) x, prob.length - 1);
+		return (x - i < prob[i])? i : alias[i];
+	}
+	
+	public int size() {
+		return prob.length;
+	}
+}
@@ -3,10 +3,13 @@ package utils.math.graphing;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.swing.*;
 
 import utils.math.parser.MathParser2;
+import utils.math.parser.Program;
 
 public class Grapher extends JPanel {
 	
@@ -97,17 +100,26 @@ public class Grapher extends JPanel {
 		g.setColor(Color.black);
 		g.drawLine(0, sy - (int) map(ymin, ymax, 0, sy, 0), sx, sy - (int) map(ymin, ymax, 0, sy, 0));
 		g.drawLine(sx -(int) map(xmin, xmax, 0, sx, 0), 0, sx- (int) map(xmin, xmax, 0, sx, 0), sy);
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		slots.put("x", 0);
+		slots.put("_pi", 1);
+		slots.put("_e", 2);
+		double[] vars = {0.0, Math.PI, Math.E};
 		for (int i=0; i<functions.size(); i++) {
+			if (functions.get(i).trim().isEmpty()) continue;
+			Program program;
+			try {
+				program = new Program(MathParser2.compile(functions.get(i), slots));
+			} catch (Exception e) {
+				e.printStackTrace();
+				continue;
+			}
+			double[] stack = new double[program.maxStack];
 			double j = 0.0;
 			Point prevPoint = null;
 			for (double i1 = xmin; i1 < xmax; i1 += delta) {
-				try {
-					j = MathParser2.parse(functions.get(i).replace(
-							"x", Double.toString(i1)));
-				} catch (Exception e) {
-					e.printStackTrace();
-					prevPoint = null;
-				}
+				vars[0] = i1;
+				j = program.eval(vars, stack);
 				Point p = new Point(
 						(int) Math.round(map(xmin, xmax, 0, sx, i1)), sy
 								- (int) Math.round(map(ymin, ymax, 0, sy, j)));
@@ -0,0 +1,165 @@
+package utils.math.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kernel for blocks whose outputs are affine in their inputs: each output is a sum of terms, each a constant or a
+ * constant times an input slot, evaluated as one row of a matrix. Only sums the row can evaluate in the source's own
+ * order are recognized - terms added left to right, none folded together, divisions only by powers of two - so
+ * results are bit-for-bit those of the general evaluators.
+ * @author david
+ *
+ */
+public class AffineKernel implements Kernel {
+
+	/**
+	 * Input slot and coefficient of each term of each output row, in evaluation order; a term with slot -1 is its
+	 * coefficient alone, and <code>null</code> rows leave the output untouched
+	 */
+	private final int[][] slots;
+	private final double[][] coefficients;
+	private final int stage;
+
+	private AffineKernel(int[][] slots, double[][] coefficients, int stage) {
+		this.slots = slots;
+		this.coefficients = coefficients;
+		this.stage = stage;
+	}
+
+	/**
+	 * Recognizes a block whose outputs are affine in inputs of their own group
+	 * @param block optimized expressions
+	 * @param groups group of each input and output slot; output <code>k</code> may only read slots <code>j</code>
+	 *               with <code>groups[j] == groups[k]</code>
+	 * @return the matrix kernel, or <code>null</code> if some output is not an exactly evaluable affine sum
+	 */
+	public static AffineKernel of(Block block, int[] groups) {
+		int n = block.outputs.length;
+		int[][] slots = new int[n][];
+		double[][] coefficients = new double[n][];
+		for (int k = 0; k < n; k++) {
+			if (block.outputs[k] == null) continue;
+			List<Term> terms = new ArrayList<>();
+			if (!sum(block.outputs[k], block, groups, groups[k], terms)) return null;
+			slots[k] = new int[terms.size()];
+			coefficients[k] = new double[terms.size()];
+			for (int t = 0; t < terms.size(); t++) {
+				slots[k][t] = terms.get(t).slot;
+				coefficients[k][t] = terms.get(t).coefficient;
+			}
+		}
+		return new AffineKernel(slots, coefficients, block.stage());
+	}
+
+	@Override
+	public void apply(double[] in, double[] out) {
+		for (int k = 0; k < slots.length; k++) {
+			int[] s = slots[k];
+			if (s == null) continue;
+			double[] c = coefficients[k];
+			double v = (s[0] < 0)? c[0] : c[0] * in[s[0]];
+			for (int t = 1; t < s.length; t++) v += (s[t] < 0)? c[t] : c[t] * in[s[t]];
+			in[stage + k] = v;
+		}
+		for (int k = 0; k < slots.length; k++) {
+			if (slots[k] != null) out[k] = in[stage + k];
+		}
+	}
+
+	/**
+	 * A constant (slot -1), or a constant times a slot
+	 */
+	private static class Term {
+		final int slot;
+		final double coefficient;
+
+		Term(int slot, double coefficient) {
+			this.slot = slot;
+			this.coefficient = coefficient;
+		}
+	}
+
+	/**
+	 * Appends the terms of a left-to-right sum of terms, <code>((t0 + t1) - t2) + ...</code>. A subtracted term
+	 * is added with its coefficient negated, which rounds the same.
+	 * @return whether <code>e</code> is such a sum over slots of the given group
+	 */
+	private static boolean sum(Expression e, Block block, int[] groups, int group, List<Term> terms) {
+		e = resolve(e, block);
+		if (e instanceof Expression.Binary) {
+			Expression.Binary b = (Expression.Binary) e;
+			if (b.op == Expression.ADD || b.op == Expression.SUB) {
+				if (!sum(b.a, block, groups, group, terms)) return false;
+				Term t = term(b.b, block, groups, group);
+				if (t == null) return false;
+				terms.add((b.op == Expression.ADD)? t : new Term(t.slot, -t.coefficient));
+				return true;
+			}
+		}
+		Term t = term(e, block, groups, group);
+		if (t == null) return false;
+		terms.add(t);
+		return true;
+	}
+
+	/**
+	 * @return <code>e</code> as a single term evaluating to the same bits, or <code>null</code> if it is not one
+	 */
+	private static Term term(Expression e, Block block, int[] groups, int group) {
+		e = resolve(e, block);
+		if (e instanceof Expression.Constant) return new Term(-1, ((Expression.Constant) e).value);
+		if (e instanceof Expression.Variable) {
+			int slot = ((Expression.Variable) e).slot;
+			// 1 * x is x
+			return (slot < groups.length && groups[slot] == group)? new Term(slot, 1) : null;
+		}
+		if (e instanceof Expression.Unary) {
+			Expression.Unary u = (Expression.Unary) e;
+			if (u.op != Expression.NEG) return null;
+			Term a = term(u.a, block, groups, group);
+			return (a == null)? null : new Term(a.slot, -a.coefficient);
+		}
+		Expression.Binary b = (Expression.Binary) e;
+		Term l = term(b.a, block, groups, group);
+		Term r = term(b.b, block, groups, group);
+		if (l == null || r == null) return null;
+		switch (b.op) {
+			case Expression.MUL:
+				// c * x, x * c and c * -x, but not c * (d * x), which would round twice
+				if (l.slot < 0 && r.slot >= 0 && Math.abs(r.coefficient) == 1)
+					return new Term(r.slot, l.coefficient * r.coefficient);
+				if (r.slot < 0 && l.slot >= 0 && Math.abs(l.coefficient) == 1)
+					return new Term(l.slot, r.coefficient * l.coefficient);
+				return null;
+			case Expression.DIV:
+				// x / 2^k and x * 2^-k round the same quotient
+				if (r.slot < 0 && l.slot >= 0 && Math.abs(l.coefficient) == 1 && powerOfTwo(r.coefficient))
+					return new Term(l.slot, l.coefficient / r.coefficient);
+				return null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @return the expression of a temporary slot, or <code>e</code> itself
+	 */
+	private static Expression resolve(Expression e, Block block) {
+		while (e instanceof Expression.Variable) {
+			int slot = ((Expression.Variable) e).slot;
+			if (slot < block.tempBase || slot >= block.tempBase + block.temps.length) break;
+			e = block.temps[slot - block.tempBase];
+		}
+		return e;
+	}
+
+	/**
+	 * @return whether <code>c</code> is a power of two whose reciprocal is a normal number
+	 */
+	private static boolean powerOfTwo(double c) {
+		int exponent = Math.getExponent(c);
+		return exponent > Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT &&
+				Math.abs(c) == Math.scalb(1.0, exponent);
+	}
+}
@@ -0,0 +1,182 @@
+package utils.math.parser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Straight-line evaluation of several expressions that share an environment: the temporaries are evaluated in
+ * order and stored in consecutive slots, then each output is evaluated into its own output slot. Kernels compute
+ * every output before storing any, so the outputs may overwrite the inputs.
+ * @author david
+ *
+ */
+public class Block {
+
+	/**
+	 * <code>temps[j]</code> is stored in slot <code>tempBase + j</code>, and may read earlier temporaries
+	 */
+	public final Expression[] temps;
+
+	public final int tempBase;
+
+	/**
+	 * Expression for each output slot, or <code>null</code> to leave the slot untouched
+	 */
+	public final Expression[] outputs;
+
+	public Block(Expression[] temps, int tempBase, Expression[] outputs) {
+		this.temps = temps;
+		this.tempBase = tempBase;
+		this.outputs = outputs;
+	}
+
+	/**
+	 * A block without temporaries
+	 */
+	public Block(Expression[] outputs) {
+		this(new Expression[0], 0, outputs);
+	}
+
+	/**
+	 * Optimizes a set of expressions evaluated together. Subtrees that only read constant slots are folded to
+	 * literals, subtrees occurring more than once across the outputs are computed once into a temporary, and
+	 * outputs that would copy their own slot unchanged are dropped. Only whole subtrees are folded - nothing is
+	 * reassociated - so results are bit-for-bit those of the original expressions.
+	 * @param outputs expression for each output slot
+	 * @param env values of the constant slots
+	 * @param constant tells which slots hold values that do not change between evaluations
+	 * @param tempBase first slot free for temporaries
+	 * @return optimized block
+	 */
+	public static Block optimize(Expression[] outputs, double[] env, IntPredicate constant, int tempBase) {
+		Expression[] folded = new Expression[outputs.length];
+		for (int i = 0; i < outputs.length; i++) {
+			if (outputs[i] == null) continue;
+			folded[i] = fold(outputs[i], env, constant);
+			if (folded[i] instanceof Expression.Variable && ((Expression.Variable) folded[i]).slot == i)
+				folded[i] = null;
+		}
+		// count occurrences of every compound subtree, without descending into repeats
+		Map<Expression, Integer> uses = new HashMap<>();
+		for (Expression e : folded) {
+			if (e != null) count(e, uses);
+		}
+		Map<Expression, Expression> bound = new HashMap<>();
+		List<Expression> temps = new ArrayList<>();
+		Expression[] result = new Expression[outputs.length];
+		for (int i = 0; i < outputs.length; i++) {
+			if (folded[i] != null) result[i] = share(folded[i], uses, bound, temps, tempBase);
+		}
+		return new Block(temps.toArray(new Expression[0]), tempBase, result);
+	}
+
+	/**
+	 * @return first slot used to stage the outputs, after the temporaries
+	 */
+	public int stage() {
+		return tempBase + temps.length;
+	}
+
+	/**
+	 * @return slots needed from <code>tempBase</code> on, for the temporaries and the staged outputs
+	 */
+	public int scratch() {
+		return temps.length + outputs.length;
+	}
+
+	/**
+	 * @return stack entries needed to evaluate every expression in the block
+	 */
+	public int depth() {
+		int depth = 0;
+		for (Expression e : temps) depth = Math.max(depth, Program.depth(e));
+		for (Expression e : outputs) {
+			if (e != null) depth = Math.max(depth, Program.depth(e));
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the slots read by the block's expressions, including its own temporaries
+	 */
+	public BitSet reads() {
+		BitSet slots = new BitSet();
+		for (Expression e : temps) reads(e, slots);
+		for (Expression e : outputs) {
+			if (e != null) reads(e, slots);
+		}
+		return slots;
+	}
+
+	private static void reads(Expression e, BitSet slots) {
+		if (e instanceof Expression.Variable) slots.set(((Expression.Variable) e).slot);
+		else if (e instanceof Expression.Unary) reads(((Expression.Unary) e).a, slots);
+		else if (e instanceof Expression.Binary) {
+			reads(((Expression.Binary) e).a, slots);
+			reads(((Expression.Binary) e).b, slots);
+		}
+	}
+
+	private static Expression fold(Expression e, double[] env, IntPredicate constant) {
+		if (e instanceof Expression.Variable) {
+			int slot = ((Expression.Variable) e).slot;
+			return constant.test(slot)? new Expression.Constant(env[slot]) : e;
+		}
+		if (e instanceof Expression.Unary) {
+			Expression.Unary u = (Expression.Unary) e;
+			Expression a = fold(u.a, env, constant);
+			if (a instanceof Expression.Constant)
+				return new Expression.Constant(Expression.apply(u.op, ((Expression.Constant) a).value));
+			return new Expression.Unary(u.op, a);
+		}
+		if (e instanceof Expression.Binary) {
+			Expression.Binary b = (Expression.Binary) e;
+			Expression l = fold(b.a, env, constant);
+			Expression r = fold(b.b, env, constant);
+			if (l instanceof Expression.Constant && r instanceof Expression.Constant)
+				return new Expression.Constant(Expression.apply(b.op,
+						((Expression.Constant) l).value, ((Expression.Constant) r).value));
+			return new Expression.Binary(b.op, l, r);
+		}
+		return e;
+	}
+
+	private static void count(Expression e, Map<Expression, Integer> uses) {
+		if (e instanceof Expression.Constant || e instanceof Expression.Variable) return;
+		if (uses.merge(e, 1, Integer::sum) > 1) return;
+		if (e instanceof Expression.Unary) count(((Expression.Unary) e).a, uses);
+		else {
+			count(((Expression.Binary) e).a, uses);
+			count(((Expression.Binary) e).b, uses);
+		}
+	}
+
+	/**
+	 * Rewrites <code>e</code> so repeated subtrees read their temporary, appending new temporaries after the ones
+	 * they depend on
+	 */
+	private static Expression share(Expression e, Map<Expression, Integer> uses, Map<Expression, Expression> bound,
+			List<Expression> temps, int tempBase) {
+		if (e instanceof Expression.Constant || e instanceof Expression.Variable) return e;
+		Expression t = bound.get(e);
+		if (t != null) return t;
+		Expression rewritten;
+		if (e instanceof Expression.Unary) {
+			Expression.Unary u = (Expression.Unary) e;
+			rewritten = new Expression.Unary(u.op, share(u.a, uses, bound, temps, tempBase));
+		} else {
+			Expression.Binary b = (Expression.Binary) e;
+			rewritten = new Expression.Binary(b.op, share(b.a, uses, bound, temps, tempBase),
+					share(b.b, uses, bound, temps, tempBase));
+		}
+		if (uses.get(e) < 2) return rewritten;
+		t = new Expression.Variable(tempBase + temps.size());
+		temps.add(rewritten);
+		bound.put(e, t);
+		return t;
+	}
+}
@@ -0,0 +1,188 @@
+package utils.math.parser;
+
+/**
+ * Compiled form of a parsed expression. Operators are resolved to opcodes, numeric literals are parsed once and
+ * variables are bound to slots in a <code>double[]</code> environment, so evaluation needs no string handling.
+ * @author david
+ *
+ */
+public abstract class Expression {
+
+	/**
+	 * Operator opcodes
+	 */
+	public static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3, NEG = 4, POW = 5, MOD = 6,
+			SIN = 7, COS = 8, TAN = 9, LOG = 10, LN = 11, SQRT = 12, MIN = 13, MAX = 14;
+
+	/**
+	 * Opcodes only used in encoded {@link Program}s: push a constant pool entry / push a variable
+	 */
+	public static final int CONST = 15, LOAD = 16;
+
+	/**
+	 * Evaluates this expression
+	 * @param env variable values, indexed by the slots the expression was bound to
+	 * @return value of the expression
+	 */
+	public abstract double eval(double[] env);
+
+	/**
+	 * @param op operator opcode
+	 * @return number of operands taken by <code>op</code>
+	 */
+	public static int arity(int op) {
+		switch (op) {
+			case ADD: case SUB: case MUL: case DIV: case POW: case MOD: case MIN: case MAX:
+				return 2;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * Applies a unary operator
+	 */
+	static double apply(int op, double a) {
+		switch (op) {
+			case NEG: return -a;
+			case SIN: return Math.sin(a);
+			case COS: return Math.cos(a);
+			case TAN: return Math.tan(a);
+			case LOG: return Math.log10(a);
+			case LN: return Math.log(a);
+			case SQRT: return Math.sqrt(a);
+			default: throw new IllegalArgumentException("not a unary operator: " + op);
+		}
+	}
+
+	/**
+	 * Applies a binary operator
+	 * @param a left operand
+	 * @param b right operand
+	 */
+	static double apply(int op, double a, double b) {
+		switch (op) {
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			case DIV: return a / b;
+			case POW: return Math.pow(a, b);
+			case MOD: return a % b;
+			case MIN: return Math.min(b, a);
+			case MAX: return Math.max(b, a);
+			default: throw new IllegalArgumentException("not a binary operator: " + op);
+		}
+	}
+
+	/**
+	 * A numeric literal
+	 */
+	public static final class Constant extends Expression {
+		public final double value;
+
+		public Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double eval(double[] env) {
+			return value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Constant &&
+					Double.doubleToLongBits(((Constant) o).value) == Double.doubleToLongBits(value);
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.hashCode(value);
+		}
+	}
+
+	/**
+	 * A variable bound to an environment slot
+	 */
+	public static final class Variable extends Expression {
+		public final int slot;
+
+		public Variable(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public double eval(double[] env) {
+			return env[slot];
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Variable && ((Variable) o).slot == slot;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * slot + 7;
+		}
+	}
+
+	/**
+	 * A function or operator of one argument
+	 */
+	public static final class Unary extends Expression {
+		public final int op;
+		public final Expression a;
+
+		public Unary(int op, Expression a) {
+			this.op = op;
+			this.a = a;
+		}
+
+		@Override
+		public double eval(double[] env) {
+			return apply(op, a.eval(env));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Unary && ((Unary) o).op == op && ((Unary) o).a.equals(a);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * op + a.hashCode();
+		}
+	}
+
+	/**
+	 * A function or operator of two arguments
+	 */
+	public static final class Binary extends Expression {
+		public final int op;
+		public final Expression a, b;
+
+		public Binary(int op, Expression a, Expression b) {
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public double eval(double[] env) {
+			return apply(op, a.eval(env), b.eval(env));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Binary)) return false;
+			Binary e = (Binary) o;
+			return e.op == op && e.a.equals(a) && e.b.equals(b);
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * op + a.hashCode()) * 31 + b.hashCode();
+		}
+	}
+}
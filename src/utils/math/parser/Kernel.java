@@ -0,0 +1,18 @@
+package utils.math.parser;
+
+/**
+ * Evaluates the expressions of a {@link Block}, each written to its own output slot
+ * @author david
+ *
+ */
+public interface Kernel {
+
+	/**
+	 * Evaluates the temporaries, then every output expression. All outputs are computed before any is stored, so
+	 * <code>in</code> and <code>out</code> may be the same array.
+	 * @param in variable values, indexed by slot; the block's {@link Block#scratch()} slots from
+	 *           <code>tempBase</code> on are overwritten
+	 * @param out output values; slots without an expression are left untouched
+	 */
+	void apply(double[] in, double[] out);
+}
@@ -0,0 +1,295 @@
+package utils.math.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates {@link Expression} trees into a JVM class implementing {@link Kernel}, defined as a hidden class so it
+ * can be unloaded with the kernel. The generated <code>apply</code> method is straight-line code that the JIT can
+ * inline and register-allocate as a whole.
+ * @author david
+ *
+ */
+public class KernelCompiler {
+
+	private static final String CLASS_NAME = "utils/math/parser/GeneratedKernel";
+	private static final String KERNEL = "utils/math/parser/Kernel";
+	private static final String OBJECT = "java/lang/Object";
+	private static final String MATH = "java/lang/Math";
+
+	// opcodes of the instructions emitted
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, DCONST_0 = 0x0e, DCONST_1 = 0x0f,
+			LDC2_W = 0x14, DLOAD = 0x18, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, DALOAD = 0x31,
+			DSTORE = 0x39, DASTORE = 0x52, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73,
+			DNEG = 0x77, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+	private final ConstantPool pool = new ConstantPool();
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private final int tempBase, temps;
+
+	private KernelCompiler(Block block) {
+		tempBase = block.tempBase;
+		temps = block.temps.length;
+	}
+
+	/**
+	 * Generates and loads a kernel evaluating the given block. Temporaries are kept in local variables rather than
+	 * in their slots.
+	 * @param block expressions to evaluate
+	 * @return the generated kernel
+	 * @throws Exception if the class cannot be generated or loaded
+	 */
+	public static Kernel compile(Block block) throws Exception {
+		byte[] bytes = new KernelCompiler(block).generate(block);
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+		try {
+			return (Kernel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new Exception(t);
+		}
+	}
+
+	private byte[] generate(Block block) throws IOException {
+		int thisClass = pool.classRef(CLASS_NAME);
+		int superClass = pool.classRef(OBJECT);
+		int kernel = pool.classRef(KERNEL);
+		int codeAttr = pool.utf8("Code");
+		int initName = pool.utf8("<init>"), initType = pool.utf8("()V");
+		int applyName = pool.utf8("apply"), applyType = pool.utf8("([D[D)V");
+
+		// <init>: call Object's constructor
+		code.write(ALOAD_0);
+		code.write(INVOKESPECIAL);
+		writeShort(pool.methodRef(OBJECT, "<init>", "()V"));
+		code.write(RETURN);
+		byte[] init = code.toByteArray();
+		code.reset();
+
+		// apply: evaluate the temporaries and every output into locals, then store the outputs
+		int local = 3;
+		for (Expression t : block.temps) {
+			emit(t);
+			store(local);
+			local += 2;
+		}
+		int firstOutput = local;
+		List<Integer> slots = new ArrayList<>();
+		for (int i = 0; i < block.outputs.length; i++) {
+			if (block.outputs[i] == null) continue;
+			emit(block.outputs[i]);
+			store(local);
+			slots.add(i);
+			local += 2;
+		}
+		int maxStack = Math.max(4, 2 * block.depth() + 2); // each double takes two words, plus in and index
+		for (int i = 0; i < slots.size(); i++) {
+			code.write(ALOAD_2);
+			pushInt(slots.get(i));
+			load(firstOutput + 2 * i);
+			code.write(DASTORE);
+		}
+		code.write(RETURN);
+		byte[] apply = code.toByteArray();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(52);
+		pool.write(out);
+		out.writeShort(0x0031); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(kernel);
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		writeMethod(out, initName, initType, codeAttr, 1, 1, init);
+		writeMethod(out, applyName, applyType, codeAttr, maxStack, local, apply);
+		out.writeShort(0); // attributes
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttr,
+			int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(0x0001); // public
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(codeAttr);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+
+	/**
+	 * Emits code leaving the value of <code>e</code> on the operand stack
+	 */
+	private void emit(Expression e) throws IOException {
+		if (e instanceof Expression.Constant) {
+			double v = ((Expression.Constant) e).value;
+			if (Double.doubleToRawLongBits(v) == 0L) code.write(DCONST_0);
+			else if (v == 1.0) code.write(DCONST_1);
+			else {
+				code.write(LDC2_W);
+				writeShort(pool.doubleConst(v));
+			}
+		} else if (e instanceof Expression.Variable) {
+			int slot = ((Expression.Variable) e).slot;
+			if (slot >= tempBase && slot < tempBase + temps) load(3 + 2 * (slot - tempBase));
+			else {
+				code.write(ALOAD_1);
+				pushInt(slot);
+				code.write(DALOAD);
+			}
+		} else if (e instanceof Expression.Unary) {
+			Expression.Unary u = (Expression.Unary) e;
+			emit(u.a);
+			if (u.op == Expression.NEG) code.write(DNEG);
+			else invokeMath(u.op, "(D)D");
+		} else {
+			Expression.Binary b = (Expression.Binary) e;
+			emit(b.a);
+			emit(b.b);
+			switch (b.op) {
+				case Expression.ADD: code.write(DADD); break;
+				case Expression.SUB: code.write(DSUB); break;
+				case Expression.MUL: code.write(DMUL); break;
+				case Expression.DIV: code.write(DDIV); break;
+				case Expression.MOD: code.write(DREM); break;
+				default: invokeMath(b.op, "(DD)D");
+			}
+		}
+	}
+
+	private void load(int local) throws IOException {
+		localInsn(DLOAD, local);
+	}
+
+	private void store(int local) throws IOException {
+		localInsn(DSTORE, local);
+	}
+
+	private void localInsn(int opcode, int local) throws IOException {
+		if (local > 255) {
+			code.write(WIDE);
+			code.write(opcode);
+			writeShort(local);
+		} else {
+			code.write(opcode);
+			code.write(local);
+		}
+	}
+
+	private void invokeMath(int op, String descriptor) throws IOException {
+		String name;
+		switch (op) {
+			case Expression.SIN: name = "sin"; break;
+			case Expression.COS: name = "cos"; break;
+			case Expression.TAN: name = "tan"; break;
+			case Expression.LOG: name = "log10"; break;
+			case Expression.LN: name = "log"; break;
+			case Expression.SQRT: name = "sqrt"; break;
+			case Expression.POW: name = "pow"; break;
+			case Expression.MIN: name = "min"; break;
+			case Expression.MAX: name = "max"; break;
+			default: throw new IOException("unsupported opcode: " + op);
+		}
+		code.write(INVOKESTATIC);
+		writeShort(pool.methodRef(MATH, name, descriptor));
+	}
+
+	private void pushInt(int v) throws IOException {
+		if (v <= 5) code.write(ICONST_0 + v);
+		else if (v < 128) {
+			code.write(BIPUSH);
+			code.write(v);
+		} else {
+			code.write(SIPUSH);
+			writeShort(v);
+		}
+	}
+
+	private void writeShort(int v) {
+		code.write(v >>> 8);
+		code.write(v);
+	}
+
+	/**
+	 * Class file constant pool, deduplicating entries
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int next = 1;
+
+		int utf8(String s) throws IOException {
+			Integer i = entries.get("U" + s);
+			if (i != null) return i;
+			out.writeByte(1);
+			out.writeUTF(s);
+			return add("U" + s, 1);
+		}
+
+		int classRef(String name) throws IOException {
+			Integer i = entries.get("C" + name);
+			if (i != null) return i;
+			int n = utf8(name);
+			out.writeByte(7);
+			out.writeShort(n);
+			return add("C" + name, 1);
+		}
+
+		int doubleConst(double v) throws IOException {
+			String key = "D" + Double.doubleToRawLongBits(v);
+			Integer i = entries.get(key);
+			if (i != null) return i;
+			out.writeByte(6);
+			out.writeDouble(v);
+			return add(key, 2); // doubles take two entries
+		}
+
+		int methodRef(String owner, String name, String descriptor) throws IOException {
+			String key = "M" + owner + '.' + name + descriptor;
+			Integer i = entries.get(key);
+			if (i != null) return i;
+			int c = classRef(owner);
+			int n = utf8(name);
+			int d = utf8(descriptor);
+			out.writeByte(12); // name and type
+			out.writeShort(n);
+			out.writeShort(d);
+			int nt = add(key + "NT", 1);
+			out.writeByte(10);
+			out.writeShort(c);
+			out.writeShort(nt);
+			return add(key, 1);
+		}
+
+		private int add(String key, int size) {
+			int i = next;
+			entries.put(key, i);
+			next += size;
+			return i;
+		}
+
+		void write(DataOutputStream dest) throws IOException {
+			dest.writeShort(next);
+			dest.write(bytes.toByteArray());
+		}
+	}
+}
@@ -13,21 +13,17 @@ import javax.swing.JOptionPane;
  */
 public class MathParser2 {
 
-	private static Map<String, Integer> operatorMap = new HashMap<String, Integer>(); //map operator to precedence
-	private static Map<String, Double> constants = new HashMap<String, Double>();
+	private static final Map<String, Integer> operatorMap = new HashMap<String, Integer>(); //map operator to precedence
+	private static final Map<String, Integer> opcodes = new HashMap<String, Integer>(); //map operator to Expression opcode
 	
 	/**
-	 * Evaluate the given mathematical expression. Supported functions: sin, cos, tan, log, ln, sqrt. Includes built-in constants _pi and _e
-	 * @param exp expression to evaluate
-	 * @return decimal value of evaluated expression
-	 * @throws Exception if a symbol is not recognized
+	 * Context used by the static {@link #parseRPN(List)}, replaced by {@link #initConstants(Map)}
 	 */
-	public static double parse(String exp) throws Exception {
-		return parse(exp, new HashMap<String, Double>());
-	}
+	private static MathParser2 shared = new MathParser2(new HashMap<String, Double>());
 	
-	public static void initConstants(Map<String, Double> constants) {
-		MathParser2.constants = constants;
+	private final Map<String, Double> constants;
+	
+	static {
 		operatorMap.put("+", 2);
 		operatorMap.put("-", 2);
 		operatorMap.put("*", 3);
@@ -47,10 +43,55 @@ public class MathParser2 {
 		operatorMap.put("(", 1); //parentheses are in here so they will be recognized as not numbers
 		operatorMap.put(")", 1);
 		operatorMap.put(",", 1); //as are commas
+		
+		opcodes.put("+", Expression.ADD);
+		opcodes.put("-", Expression.SUB);
+		opcodes.put("*", Expression.MUL);
+		opcodes.put("/", Expression.DIV);
+		opcodes.put("~", Expression.NEG);
+		opcodes.put("^", Expression.POW);
+		opcodes.put("%", Expression.MOD);
+		opcodes.put("sin", Expression.SIN);
+		opcodes.put("cos", Expression.COS);
+		opcodes.put("tan", Expression.TAN);
+		opcodes.put("log", Expression.LOG);
+		opcodes.put("ln", Expression.LN);
+		opcodes.put("sqrt", Expression.SQRT);
+		opcodes.put("min", Expression.MIN);
+		opcodes.put("max", Expression.MAX);
+		opcodes.put("pow", Expression.POW);
+	}
+	
+	/**
+	 * Creates an evaluation context with its own variables. Contexts share no mutable state, so each thread can
+	 * evaluate with its own instance.
+	 * @param variables mapping of variable name to value; copied, together with the built-in constants _pi and _e
+	 */
+	public MathParser2(Map<String, Double> variables) {
+		constants = new HashMap<String, Double>(variables);
 		constants.put("_pi", Math.PI);
 		constants.put("_e", Math.E);
 	}
 	
+	/**
+	 * Evaluate the given mathematical expression. Supported functions: sin, cos, tan, log, ln, sqrt. Includes built-in constants _pi and _e
+	 * @param exp expression to evaluate
+	 * @return decimal value of evaluated expression
+	 * @throws Exception if a symbol is not recognized
+	 */
+	public static double parse(String exp) throws Exception {
+		return parse(exp, new HashMap<String, Double>());
+	}
+	
+	/**
+	 * Sets the variables used by the static {@link #parseRPN(List)}. Not safe to use from several threads at once;
+	 * use a {@link #MathParser2(Map)} context per thread instead.
+	 * @param constants mapping of variable name to value
+	 */
+	public static void initConstants(Map<String, Double> constants) {
+		shared = new MathParser2(constants);
+	}
+	
 	/**
 	 * Evaluate the given mathematical expression using the given variables. Supported functions: sin, cos, tan, log, ln, sqrt, min, max. Includes built-in constants _pi and _e
 	 * @param exp expression to evaluate
@@ -59,8 +100,17 @@ public class MathParser2 {
 	 * @throws Exception if a symbol is not recognized
 	 */
 	public static double parse(String exp, Map<String, Double> variables) throws Exception {
-		initConstants(variables);
-		return parseRPN(toRPN(tokenizeInput(exp)));
+		return new MathParser2(variables).eval(exp);
+	}
+	
+	/**
+	 * Evaluate the given mathematical expression with this context's variables
+	 * @param exp expression to evaluate
+	 * @return decimal value of evaluated expression
+	 * @throws Exception if a symbol is not recognized
+	 */
+	public double eval(String exp) throws Exception {
+		return evalRPN(toRPN(tokenizeInput(exp)));
 	}
 	
 	public static List<String> tokenizeInput(String exp) throws Exception {
@@ -161,12 +211,22 @@ public class MathParser2 {
 	}
 	
 	/**
-	 * Parse an expression in Reverse-Polish Notation
+	 * Parse an expression in Reverse-Polish Notation, using the variables set by {@link #initConstants(Map)}
 	 * @param input list of tokens in RPN
 	 * @return value of evaluated expression
 	 * @throws Exception if a symbol is not recognized
 	 */
 	public static double parseRPN(List<String> input) throws Exception {
+		return shared.evalRPN(input);
+	}
+	
+	/**
+	 * Evaluate an expression in Reverse-Polish Notation with this context's variables
+	 * @param input list of tokens in RPN
+	 * @return value of evaluated expression
+	 * @throws Exception if a symbol is not recognized
+	 */
+	public double evalRPN(List<String> input) throws Exception {
 //		print(input);
 		Stack<Double> stack = new Stack<Double>();
 		for(int i=0; i<input.size(); i++) {
@@ -256,7 +316,134 @@ public class MathParser2 {
 		return stack.pop();
 	}
 	
-	private static double getVal(String s) {
+	/**
+	 * Compile an expression in Reverse-Polish Notation into an {@link Expression} tree. Variables are resolved the
+	 * same way as in {@link #parseRPN(List)}, but to environment slots instead of values.
+	 * @param input list of tokens in RPN
+	 * @param slots mapping of variable name to environment slot
+	 * @return compiled expression
+	 * @throws Exception if a symbol is not recognized or the expression is malformed
+	 */
+	public static Expression compile(List<String> input, Map<String, Integer> slots) throws Exception {
+		Stack<Expression> stack = new Stack<Expression>();
+		try {
+			for(String s : input) {
+				Integer op = opcodes.get(s);
+				if(op == null) stack.push(bind(s, slots));
+				else if(Expression.arity(op) == 1) stack.push(new Expression.Unary(op, stack.pop()));
+				else {
+					Expression a1 = stack.pop();
+					Expression a2 = stack.pop();
+					stack.push(new Expression.Binary(op, a2, a1));
+				}
+			}
+			return stack.pop();
+		} catch(EmptyStackException e) {
+			throw new Exception("Malformed expression: " + input);
+		}
+	}
+	
+	/**
+	 * Compile the given expression into an {@link Expression} tree
+	 * @param exp expression in infix notation
+	 * @param slots mapping of variable name to environment slot
+	 * @return compiled expression
+	 * @throws Exception if a symbol is not recognized or the expression is malformed
+	 */
+	public static Expression compile(String exp, Map<String, Integer> slots) throws Exception {
+		return compile(toRPN(tokenizeInput(exp)), slots);
+	}
+	
+	/**
+	 * Evaluate an encoded {@link Program} on a primitive stack, without allocating
+	 * @param code opcodes in postfix order, see {@link Program#code}
+	 * @param constants constant pool
+	 * @param vars variable values, indexed by slot
+	 * @param stack evaluation stack
+	 * @param sp first stack entry to use
+	 * @return value of the expression
+	 */
+	public static double evaluate(int[] code, double[] constants, double[] vars, double[] stack, int sp) {
+		for(int pc=0; pc<code.length; pc++) {
+			switch(code[pc]) {
+			case Expression.CONST:
+				stack[sp++] = constants[code[++pc]];
+				break;
+			case Expression.LOAD:
+				stack[sp++] = vars[code[++pc]];
+				break;
+			case Expression.ADD:
+				sp--;
+				stack[sp-1] += stack[sp];
+				break;
+			case Expression.SUB:
+				sp--;
+				stack[sp-1] -= stack[sp];
+				break;
+			case Expression.MUL:
+				sp--;
+				stack[sp-1] *= stack[sp];
+				break;
+			case Expression.DIV:
+				sp--;
+				stack[sp-1] /= stack[sp];
+				break;
+			case Expression.MOD:
+				sp--;
+				stack[sp-1] %= stack[sp];
+				break;
+			case Expression.POW:
+				sp--;
+				stack[sp-1] = Math.pow(stack[sp-1], stack[sp]);
+				break;
+			case Expression.MIN:
+				sp--;
+				stack[sp-1] = Math.min(stack[sp], stack[sp-1]);
+				break;
+			case Expression.MAX:
+				sp--;
+				stack[sp-1] = Math.max(stack[sp], stack[sp-1]);
+				break;
+			case Expression.NEG:
+				stack[sp-1] = -stack[sp-1];
+				break;
+			case Expression.SIN:
+				stack[sp-1] = Math.sin(stack[sp-1]);
+				break;
+			case Expression.COS:
+				stack[sp-1] = Math.cos(stack[sp-1]);
+				break;
+			case Expression.TAN:
+				stack[sp-1] = Math.tan(stack[sp-1]);
+				break;
+			case Expression.LOG:
+				stack[sp-1] = Math.log10(stack[sp-1]);
+				break;
+			case Expression.LN:
+				stack[sp-1] = Math.log(stack[sp-1]);
+				break;
+			case Expression.SQRT:
+				stack[sp-1] = Math.sqrt(stack[sp-1]);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown opcode: " + code[pc]);
+			}
+		}
+		return stack[sp-1];
+	}
+	
+	private static Expression bind(String s, Map<String, Integer> slots) throws Exception {
+		if(slots.containsKey(s)) return new Expression.Variable(slots.get(s));
+		if(slots.containsKey(s.replace("-", "")))
+			return new Expression.Unary(Expression.NEG, new Expression.Variable(slots.get(s.replace("-", ""))));
+		try {
+			return new Expression.Constant(Double.parseDouble(s));
+		} catch(NumberFormatException e) {
+			throw new Exception("unknown symbol: " + s);
+		}
+	}
+	
+	private double getVal(String s) {
 		if(constants.containsKey(s)) return constants.get(s);
 		if(constants.containsKey(s.replace("-", ""))) return -constants.get(s.replace("-", ""));
 		else return Double.parseDouble(s);
@@ -0,0 +1,80 @@
+package utils.math.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link Expression} encoded as a flat opcode array and constant pool, for evaluation with
+ * {@link MathParser2#evaluate(int[], double[], double[], double[], int)}
+ * @author david
+ *
+ */
+public class Program {
+
+	/**
+	 * Opcodes in postfix order. {@link Expression#CONST} and {@link Expression#LOAD} are followed by their operand:
+	 * a constant pool index or a variable slot.
+	 */
+	public final int[] code;
+
+	public final double[] constants;
+
+	/**
+	 * Number of stack entries needed to evaluate the program
+	 */
+	public final int maxStack;
+
+	public Program(Expression e) {
+		List<Integer> code = new ArrayList<>();
+		List<Double> constants = new ArrayList<>();
+		maxStack = encode(e, code, constants);
+		this.code = code.stream().mapToInt(Integer::intValue).toArray();
+		this.constants = constants.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	/**
+	 * Evaluates the program
+	 * @param vars variable values, indexed by slot
+	 * @param stack evaluation stack of at least {@link #maxStack} entries
+	 * @return value of the expression
+	 */
+	public double eval(double[] vars, double[] stack) {
+		return MathParser2.evaluate(code, constants, vars, stack, 0);
+	}
+
+	/**
+	 * @return stack entries needed to evaluate <code>e</code>
+	 */
+	public static int depth(Expression e) {
+		if (e instanceof Expression.Unary) return depth(((Expression.Unary) e).a);
+		if (e instanceof Expression.Binary) {
+			Expression.Binary b = (Expression.Binary) e;
+			return Math.max(depth(b.a), 1 + depth(b.b));
+		}
+		return 1;
+	}
+
+	private static int encode(Expression e, List<Integer> code, List<Double> constants) {
+		if (e instanceof Expression.Constant) {
+			code.add(Expression.CONST);
+			code.add(constants.size());
+			constants.add(((Expression.Constant) e).value);
+			return 1;
+		}
+		if (e instanceof Expression.Variable) {
+			code.add(Expression.LOAD);
+			code.add(((Expression.Variable) e).slot);
+			return 1;
+		}
+		if (e instanceof Expression.Unary) {
+			Expression.Unary u = (Expression.Unary) e;
+			int depth = encode(u.a, code, constants);
+			code.add(u.op);
+			return depth;
+		}
+		Expression.Binary b = (Expression.Binary) e;
+		int depth = Math.max(encode(b.a, code, constants), 1 + encode(b.b, code, constants));
+		code.add(b.op);
+		return depth;
+	}
+}
@@ -0,0 +1,49 @@
+package utils.math.parser;
+
+/**
+ * Kernel that evaluates the expressions of a {@link Block} as encoded {@link Program}s on a primitive stack. The
+ * stack lives in the input array, starting at a fixed offset, so the kernel itself holds no mutable state.
+ * @author david
+ *
+ */
+public class StackKernel implements Kernel {
+
+	private final int[][] code;
+	private final double[][] constants;
+	private final int tempBase, temps, stage;
+	private final int stackBase;
+
+	/**
+	 * @param block expressions to evaluate
+	 * @param stackBase first slot of the input array used as the evaluation stack; the input must have room for
+	 *                  {@link Block#depth()} entries after it
+	 */
+	public StackKernel(Block block, int stackBase) {
+		temps = block.temps.length;
+		tempBase = block.tempBase;
+		stage = block.stage();
+		code = new int[temps + block.outputs.length][];
+		constants = new double[code.length][];
+		for (int i = 0; i < code.length; i++) {
+			Expression e = (i < temps)? block.temps[i] : block.outputs[i - temps];
+			if (e == null) continue;
+			Program p = new Program(e);
+			code[i] = p.code;
+			constants[i] = p.constants;
+		}
+		this.stackBase = stackBase;
+	}
+
+	@Override
+	public void apply(double[] in, double[] out) {
+		for (int i = 0; i < temps; i++) {
+			in[tempBase + i] = MathParser2.evaluate(code[i], constants[i], in, in, stackBase);
+		}
+		for (int i = temps; i < code.length; i++) {
+			if (code[i] != null) in[stage + i - temps] = MathParser2.evaluate(code[i], constants[i], in, in, stackBase);
+		}
+		for (int i = temps; i < code.length; i++) {
+			if (code[i] != null) out[i - temps] = in[stage + i - temps];
+		}
+	}
+}
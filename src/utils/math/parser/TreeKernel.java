@@ -0,0 +1,33 @@
+package utils.math.parser;
+
+/**
+ * Kernel that interprets the {@link Expression} trees of a {@link Block} directly
+ * @author david
+ *
+ */
+public class TreeKernel implements Kernel {
+
+	private final Expression[] temps;
+	private final int tempBase, stage;
+	private final Expression[] outputs;
+
+	public TreeKernel(Block block) {
+		temps = block.temps;
+		tempBase = block.tempBase;
+		stage = block.stage();
+		outputs = block.outputs;
+	}
+
+	@Override
+	public void apply(double[] in, double[] out) {
+		for (int i = 0; i < temps.length; i++) {
+			in[tempBase + i] = temps[i].eval(in);
+		}
+		for (int i = 0; i < outputs.length; i++) {
+			if (outputs[i] != null) in[stage + i] = outputs[i].eval(in);
+		}
+		for (int i = 0; i < outputs.length; i++) {
+			if (outputs[i] != null) out[i] = in[stage + i];
+		}
+	}
+}